@@ -0,0 +1,111 @@
+package Knn;
+
+/**
+ * Euclidean nearest neighbour search for a block of queries at once. The squared
+ * distance is expanded as ||a||^2 + ||b||^2 - 2 a.b with the training norms computed
+ * once, so the work becomes a matrix product of the query block with the training rows,
+ * done tile by tile so that both tiles and the products stay in the L2 cache. Every
+ * product goes straight into the query's top k heap.
+ * The expansion loses precision to cancellation, so it only filters: a row whose
+ * expanded distance, less its rounding error bound, can still beat the current k-th
+ * nearest gets its distance computed directly, and that is what the heap keeps.
+ * Most rows are rejected by the filter, and the result is exactly that of a plain scan.
+ */
+class BlockedL2 {
+	//queries per block, and training rows per tile: 32 x 128 products take 32KB
+	static final int QUERY_TILE = 32;
+	private static final int ROW_TILE = 128;
+	//relative rounding error bound of the expansion per feature, a few units in the last place
+	private static final double ERROR = 8 * Math.ulp(1.0);
+	//per thread scratch: the products of a tile, and the squared norms of the queries
+	private static final ThreadLocal<double[]> products = ThreadLocal.withInitial(() -> new double[QUERY_TILE * ROW_TILE]);
+	private static final ThreadLocal<double[]> queryNorms = ThreadLocal.withInitial(() -> new double[QUERY_TILE]);
+	private static final DistanceKernel L2 = DistanceKernel.forP(2);
+	private final FeatureStore store;
+	//squared norms of the training rows
+	private final double[] norms;
+
+	BlockedL2(FeatureStore store) {
+		this.store = store;
+		this.norms = new double[store.numRows];
+		int d = store.numFeatures;
+		for (int row = 0; row < store.numRows; row++) {
+			norms[row] = dot(store.values, row * d, store.values, row * d, d);
+		}
+	}
+
+	/**
+	 * Finds the nearest training rows of a block of queries, outside [excludeFrom, excludeTo).
+	 * @param queries the features of the queries, one after another
+	 * @param numQueries at most QUERY_TILE
+	 * @param nearest one reset heap per query, receiving the rows with their squared distances
+	 *        (as DistanceKernel.forP(2) computes them)
+	 * @param excludeFrom
+	 * @param excludeTo
+	 */
+	void search(double[] queries, int numQueries, NeighbourHeap[] nearest, int excludeFrom, int excludeTo) {
+		int d = store.numFeatures;
+		double[] product = products.get(), norm = queryNorms.get();
+		for (int i = 0; i < numQueries; i++) {
+			norm[i] = dot(queries, i * d, queries, i * d, d);
+		}
+		for (int from = 0; from < store.numRows; from += ROW_TILE) {
+			int to = Math.min(from + ROW_TILE, store.numRows);
+			if (from >= excludeFrom && to <= excludeTo) continue;
+			multiply(queries, numQueries, from, to, product);
+			for (int i = 0; i < numQueries; i++) {
+				//the rows of the tile before and after the excluded range
+				offer(queries, i * d, norm[i], product, i * ROW_TILE - from, from, Math.min(to, excludeFrom), nearest[i]);
+				offer(queries, i * d, norm[i], product, i * ROW_TILE - from, Math.max(from, excludeTo), to, nearest[i]);
+			}
+		}
+	}
+
+	private void offer(double[] queries, int queryOffset, double queryNorm, double[] product, int offset, int from, int to, NeighbourHeap nearest) {
+		int d = store.numFeatures;
+		double error = ERROR * (d + 2);
+		for (int row = from; row < to; row++) {
+			double expanded = queryNorm + norms[row] - 2 * product[offset + row];
+			if (expanded - error * (queryNorm + norms[row]) <= nearest.worstDistance()) {
+				nearest.offer(row, L2.reduced(queries, queryOffset, store.values, row * d, d));
+			}
+		}
+	}
+
+	/**
+	 * product[i * ROW_TILE + (row - from)] = query i . training row, four rows at a time.
+	 */
+	private void multiply(double[] queries, int numQueries, int from, int to, double[] product) {
+		int d = store.numFeatures;
+		double[] values = store.values;
+		for (int i = 0; i < numQueries; i++) {
+			int q = i * d, out = i * ROW_TILE - from, row = from;
+			for (; row + 4 <= to; row += 4) {
+				int r0 = row * d, r1 = r0 + d, r2 = r1 + d, r3 = r2 + d;
+				double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+				for (int f = 0; f < d; f++) {
+					double x = queries[q + f];
+					s0 += x * values[r0 + f];
+					s1 += x * values[r1 + f];
+					s2 += x * values[r2 + f];
+					s3 += x * values[r3 + f];
+				}
+				product[out + row] = s0;
+				product[out + row + 1] = s1;
+				product[out + row + 2] = s2;
+				product[out + row + 3] = s3;
+			}
+			for (; row < to; row++) {
+				product[out + row] = dot(queries, q, values, row * d, d);
+			}
+		}
+	}
+
+	private static double dot(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += one[oneOffset + i] * two[twoOffset + i];
+		}
+		return sum;
+	}
+}
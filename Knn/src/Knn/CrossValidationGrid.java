@@ -0,0 +1,107 @@
+package Knn;
+
+import java.util.Arrays;
+
+import weka.core.Instances;
+
+import Knn.Knn.DistanceCheck;
+import Knn.Knn.weightingScheme;
+
+/**
+ * Cross-validation of a whole Knn grid (every k up to some maximum, every p of a list,
+ * both weighting schemes) with one neighbour search per test instance and p.
+ * The search finds the maxK nearest neighbours sorted nearest first, and the k nearest
+ * are exactly their first k (ties go to the earlier rows either way), so the
+ * predictions for all k and schemes are prefix sums over the same list.
+ * The folds are the ones Knn.crossValidationError uses (views over one store, nothing is
+ * copied), and the errors come out the same.
+ */
+class CrossValidationGrid {
+
+	/**
+	 * A configuration of the grid with its cross validation error.
+	 */
+	static final class Configuration {
+		final int k;
+		final double p;
+		final weightingScheme scheme;
+		final double error;
+
+		Configuration(int k, double p, weightingScheme scheme, double error) {
+			this.k = k;
+			this.p = p;
+			this.scheme = scheme;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * @param instances
+	 * @param numFolds
+	 * @param maxK
+	 * @param ps
+	 * @return errors[i][k - 1][scheme.ordinal()], the cross validation error with p = ps[i]
+	 */
+	static double[][][] errors(Instances instances, int numFolds, int maxK, double[] ps) {
+		int numSchemes = weightingScheme.values().length;
+		double[][][] errors = new double[ps.length][maxK][numSchemes];
+		//per fold sums of absolute errors, per k and scheme
+		double[][] foldErrors = new double[maxK][numSchemes];
+		int numRows = instances.numInstances();
+		for (int i = 0; i < ps.length; i++) {
+			KnnModel knn = new Knn(instances, maxK, ps[i], weightingScheme.Unweighted, DistanceCheck.Regular).getModel();
+			for (int fold = 0; fold < numFolds; fold++) {
+				int first = Knn.foldStart(numRows, numFolds, fold), end = Knn.foldStart(numRows, numFolds, fold + 1);
+				foldErrors(knn, first, end, maxK, foldErrors);
+				for (int k = 0; k < maxK; k++) {
+					for (int s = 0; s < numSchemes; s++) {
+						errors[i][k][s] += foldErrors[k][s] / (end - first);
+					}
+				}
+			}
+			for (int k = 0; k < maxK; k++) {
+				for (int s = 0; s < numSchemes; s++) {
+					errors[i][k][s] /= numFolds;
+				}
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Sums the absolute errors on the fold [first, end) of every k up to maxK (which the
+	 * model's k should be at least) and both schemes.
+	 * @param knn
+	 * @param first
+	 * @param end
+	 * @param maxK
+	 * @param foldErrors set to the sums, per k - 1 and scheme.ordinal()
+	 */
+	static void foldErrors(KnnModel knn, int first, int end, int maxK, double[][] foldErrors) {
+		int weighted = weightingScheme.Weighted.ordinal(), unweighted = weightingScheme.Unweighted.ordinal();
+		for (double[] row : foldErrors) {
+			Arrays.fill(row, 0.0);
+		}
+		for (int query = first; query < end; query++) {
+			NeighbourHeap nearest = knn.findNearestRows(query, first, end);
+			double target = knn.target(query), sum = 0.0, numSum = 0.0, denumSum = 0.0;
+			//a neighbour at distance 0 decides the weighted prediction on its own
+			boolean exact = nearest.size() > 0 && nearest.distance(0) == 0;
+			for (int k = 1; k <= maxK; k++) {
+				int n = Math.min(k, nearest.size());
+				if (k <= nearest.size()) {
+					double value = knn.target(nearest.row(k - 1)), dis = nearest.distance(k - 1);
+					sum += value;
+					if (!exact) {
+						double Wi = 1 / (dis * dis);
+						numSum += Wi * value;
+						denumSum += Wi;
+					}
+				}
+				double weightedPrediction = exact ? knn.target(nearest.row(0)) : numSum / denumSum;
+				foldErrors[k - 1][unweighted] += Math.abs(sum / (double) n - target);
+				foldErrors[k - 1][weighted] += Math.abs(weightedPrediction - target);
+			}
+		}
+	}
+}
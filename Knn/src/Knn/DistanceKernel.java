@@ -0,0 +1,304 @@
+package Knn;
+
+/**
+ * Distance loops over primitive feature arrays, one implementation per kind of p,
+ * picked once with forP. They work on "reduced" distances, which order rows the same
+ * way as the distances and are cheaper: the sum of |difference|^p for Lp (no final
+ * root) and the largest |difference| for L infinity (p > 3, as in DistanceCalculator).
+ * The loops keep four independent partial sums (or maxima) over contiguous arrays, which the JIT
+ * compiles to SIMD code where the CPU has it, and only the general p calls Math.pow.
+ */
+abstract class DistanceKernel {
+	private static final DistanceKernel L1 = new L1(), L2 = new L2(), L3 = new IntegerPower(3), L_INFINITY = new LInfinity();
+
+	/**
+	 * @param p at least 1, below that |difference|^p sums aren't distances
+	 * @return the kernel for the Lp distance
+	 */
+	static DistanceKernel forP(double p) {
+		if (!(p >= 1)) {
+			throw new IllegalArgumentException("An Lp distance needs p of at least 1: " + p);
+		}
+		if (p > 3) return L_INFINITY;
+		if (p == 1) return L1;
+		if (p == 2) return L2;
+		if (p == 3) return L3;
+		return new Power(p);
+	}
+
+	/**
+	 * The reduced distance between two feature vectors.
+	 * @param one
+	 * @param oneOffset index of the first feature of 'one'
+	 * @param two
+	 * @param twoOffset index of the first feature of 'two'
+	 * @param length number of features
+	 * @return
+	 */
+	abstract double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length);
+
+	/**
+	 * reduced with early abandoning: stops once the partial distance reaches 'bound',
+	 * since the distance can then only be larger. When it doesn't stop the result is
+	 * exactly that of reduced.
+	 * @param bound a reduced distance, usually the current k-th nearest one
+	 * @return the reduced distance, or some value >= bound when it's at least 'bound'
+	 */
+	abstract double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound);
+
+	/**
+	 * The reduced form of a distance along a single axis.
+	 * @param difference absolute difference along the axis
+	 * @return
+	 */
+	abstract double axis(double difference);
+
+	/**
+	 * @return whether the axes' reduced distances combine by their maximum, rather than their sum
+	 */
+	boolean maximum() {
+		return false;
+	}
+
+	/**
+	 * Turns a reduced distance back into the distance itself.
+	 * @param reduced
+	 * @return
+	 */
+	abstract double distance(double reduced);
+
+	private static final class L1 extends DistanceKernel {
+		@Override
+		double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				s0 += Math.abs(one[oneOffset + i] - two[twoOffset + i]);
+				s1 += Math.abs(one[oneOffset + i + 1] - two[twoOffset + i + 1]);
+				s2 += Math.abs(one[oneOffset + i + 2] - two[twoOffset + i + 2]);
+				s3 += Math.abs(one[oneOffset + i + 3] - two[twoOffset + i + 3]);
+			}
+			double sum = (s0 + s1) + (s2 + s3);
+			for (; i < length; i++) {
+				sum += Math.abs(one[oneOffset + i] - two[twoOffset + i]);
+			}
+			return sum;
+		}
+
+		@Override
+		double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound) {
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				s0 += Math.abs(one[oneOffset + i] - two[twoOffset + i]);
+				s1 += Math.abs(one[oneOffset + i + 1] - two[twoOffset + i + 1]);
+				s2 += Math.abs(one[oneOffset + i + 2] - two[twoOffset + i + 2]);
+				s3 += Math.abs(one[oneOffset + i + 3] - two[twoOffset + i + 3]);
+				if ((s0 + s1) + (s2 + s3) >= bound) return (s0 + s1) + (s2 + s3);
+			}
+			double sum = (s0 + s1) + (s2 + s3);
+			for (; i < length; i++) {
+				sum += Math.abs(one[oneOffset + i] - two[twoOffset + i]);
+			}
+			return sum;
+		}
+
+		@Override
+		double axis(double difference) {
+			return difference;
+		}
+
+		@Override
+		double distance(double reduced) {
+			return reduced;
+		}
+	}
+
+	private static final class L2 extends DistanceKernel {
+		@Override
+		double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				double d0 = one[oneOffset + i] - two[twoOffset + i];
+				double d1 = one[oneOffset + i + 1] - two[twoOffset + i + 1];
+				double d2 = one[oneOffset + i + 2] - two[twoOffset + i + 2];
+				double d3 = one[oneOffset + i + 3] - two[twoOffset + i + 3];
+				s0 += d0 * d0;
+				s1 += d1 * d1;
+				s2 += d2 * d2;
+				s3 += d3 * d3;
+			}
+			double sum = (s0 + s1) + (s2 + s3);
+			for (; i < length; i++) {
+				double difference = one[oneOffset + i] - two[twoOffset + i];
+				sum += difference * difference;
+			}
+			return sum;
+		}
+
+		@Override
+		double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound) {
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				double d0 = one[oneOffset + i] - two[twoOffset + i];
+				double d1 = one[oneOffset + i + 1] - two[twoOffset + i + 1];
+				double d2 = one[oneOffset + i + 2] - two[twoOffset + i + 2];
+				double d3 = one[oneOffset + i + 3] - two[twoOffset + i + 3];
+				s0 += d0 * d0;
+				s1 += d1 * d1;
+				s2 += d2 * d2;
+				s3 += d3 * d3;
+				if ((s0 + s1) + (s2 + s3) >= bound) return (s0 + s1) + (s2 + s3);
+			}
+			double sum = (s0 + s1) + (s2 + s3);
+			for (; i < length; i++) {
+				double difference = one[oneOffset + i] - two[twoOffset + i];
+				sum += difference * difference;
+			}
+			return sum;
+		}
+
+		@Override
+		double axis(double difference) {
+			return difference * difference;
+		}
+
+		@Override
+		double distance(double reduced) {
+			return Math.sqrt(reduced);
+		}
+	}
+
+	private static final class LInfinity extends DistanceKernel {
+		@Override
+		boolean maximum() {
+			return true;
+		}
+
+		@Override
+		double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+			double m0 = 0, m1 = 0, m2 = 0, m3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				m0 = Math.max(m0, Math.abs(one[oneOffset + i] - two[twoOffset + i]));
+				m1 = Math.max(m1, Math.abs(one[oneOffset + i + 1] - two[twoOffset + i + 1]));
+				m2 = Math.max(m2, Math.abs(one[oneOffset + i + 2] - two[twoOffset + i + 2]));
+				m3 = Math.max(m3, Math.abs(one[oneOffset + i + 3] - two[twoOffset + i + 3]));
+			}
+			double max = Math.max(Math.max(m0, m1), Math.max(m2, m3));
+			for (; i < length; i++) {
+				max = Math.max(max, Math.abs(one[oneOffset + i] - two[twoOffset + i]));
+			}
+			return max;
+		}
+
+		@Override
+		double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound) {
+			double max = 0;
+			for (int i = 0; i < length; i++) {
+				double difference = Math.abs(one[oneOffset + i] - two[twoOffset + i]);
+				if (max < difference) {
+					max = difference;
+					if (max >= bound) return max;
+				}
+			}
+			return max;
+		}
+
+		@Override
+		double axis(double difference) {
+			return difference;
+		}
+
+		@Override
+		double distance(double reduced) {
+			return reduced;
+		}
+	}
+
+	/**
+	 * Lp for whole p (3 here, since larger p is L infinity), with multiplications instead of Math.pow.
+	 */
+	private static final class IntegerPower extends DistanceKernel {
+		private final int p;
+
+		IntegerPower(int p) {
+			this.p = p;
+		}
+
+		@Override
+		double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+			return bounded(one, oneOffset, two, twoOffset, length, Double.POSITIVE_INFINITY);
+		}
+
+		@Override
+		double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound) {
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				s0 += axis(Math.abs(one[oneOffset + i] - two[twoOffset + i]));
+				s1 += axis(Math.abs(one[oneOffset + i + 1] - two[twoOffset + i + 1]));
+				s2 += axis(Math.abs(one[oneOffset + i + 2] - two[twoOffset + i + 2]));
+				s3 += axis(Math.abs(one[oneOffset + i + 3] - two[twoOffset + i + 3]));
+				if ((s0 + s1) + (s2 + s3) >= bound) return (s0 + s1) + (s2 + s3);
+			}
+			double sum = (s0 + s1) + (s2 + s3);
+			for (; i < length; i++) {
+				sum += axis(Math.abs(one[oneOffset + i] - two[twoOffset + i]));
+			}
+			return sum;
+		}
+
+		@Override
+		double axis(double difference) {
+			double power = difference;
+			for (int i = 1; i < p; i++) {
+				power *= difference;
+			}
+			return power;
+		}
+
+		@Override
+		double distance(double reduced) {
+			return Math.pow(reduced, 1.0 / p);
+		}
+	}
+
+	/**
+	 * Lp for any other p, with Math.pow.
+	 */
+	private static final class Power extends DistanceKernel {
+		private final double p;
+
+		Power(double p) {
+			this.p = p;
+		}
+
+		@Override
+		double reduced(double[] one, int oneOffset, double[] two, int twoOffset, int length) {
+			return bounded(one, oneOffset, two, twoOffset, length, Double.POSITIVE_INFINITY);
+		}
+
+		@Override
+		double bounded(double[] one, int oneOffset, double[] two, int twoOffset, int length, double bound) {
+			double sum = 0;
+			for (int i = 0; i < length; i++) {
+				sum += Math.pow(Math.abs(one[oneOffset + i] - two[twoOffset + i]), p);
+				if (sum >= bound) return sum;
+			}
+			return sum;
+		}
+
+		@Override
+		double axis(double difference) {
+			return Math.pow(difference, p);
+		}
+
+		@Override
+		double distance(double reduced) {
+			return Math.pow(reduced, 1 / p);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package Knn;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A primitive, contiguous copy of the training features used by the neighbour indexes.
+ * As in DistanceCalculator, the features are all the attributes but the last one (the class).
+ */
+class FeatureStore {
+	//the instances the rows were copied from, null when not referenced
+	final Instances instances;
+	final int numRows;
+	final int numFeatures;
+	//the features of row r are stored at [r * numFeatures, (r + 1) * numFeatures), null in compact models
+	final double[] values;
+	final double[] targets;
+
+	FeatureStore(Instances instances) {
+		this.instances = instances;
+		this.numRows = instances.numInstances();
+		this.numFeatures = instances.numAttributes() - 1;
+		this.values = new double[numRows * numFeatures];
+		this.targets = new double[numRows];
+		for (int r = 0; r < numRows; r++) {
+			Instance instance = instances.instance(r);
+			features(instance, values, r * numFeatures);
+			targets[r] = instance.classValue();
+		}
+	}
+
+	/**
+	 * A store over features which don't come from Instances (e.g. SlidingWindowKnn's segments).
+	 * A compact model's store has no values, its features being kept by a QuantizedStore.
+	 * @param values row-major features, numFeatures per row, or null
+	 * @param targets
+	 * @param numFeatures
+	 */
+	FeatureStore(double[] values, double[] targets, int numFeatures) {
+		this.instances = null;
+		this.numRows = targets.length;
+		this.numFeatures = numFeatures;
+		this.values = values;
+		this.targets = targets;
+	}
+
+	/**
+	 * Copies the features of an instance (e.g. a query) into 'destination' at 'offset'.
+	 */
+	static void features(Instance instance, double[] destination, int offset) {
+		for (int i = 0; i < instance.numAttributes() - 1; i++) {
+			destination[offset + i] = instance.value(i);
+		}
+	}
+}
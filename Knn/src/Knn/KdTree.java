@@ -0,0 +1,140 @@
+package Knn;
+
+import java.util.function.IntPredicate;
+
+/**
+ * A KD-tree over the rows of a FeatureStore for exact k nearest neighbour queries.
+ * Every internal node splits its rows at the median of the feature with the largest
+ * spread. A subtree is skipped when the distance from the query to the splitting
+ * plane alone is already larger than the current k-th nearest distance, which holds
+ * for every Lp distance (and L infinity), since none of them is smaller than the
+ * difference along a single coordinate.
+ * 
+ * Distances are compared in "reduced" form (see DistanceKernel),
+ * without the final root.
+ */
+class KdTree implements NeighbourIndex {
+	private static final int LEAF_SIZE = 8;
+	private final FeatureStore store;
+	//row indices, every node owns a contiguous range of it
+	private final int[] rows;
+	private final Node root;
+
+	private static class Node {
+		final int from, to;
+		int splitFeature = -1;
+		double splitValue;
+		Node left, right;
+
+		Node(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	KdTree(FeatureStore store) {
+		this.store = store;
+		this.rows = new int[store.numRows];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+		this.root = build(0, rows.length);
+	}
+
+	private Node build(int from, int to) {
+		Node node = new Node(from, to);
+		if (to - from <= LEAF_SIZE) return node;
+		//split on the feature with the largest spread
+		int d = store.numFeatures;
+		double bestSpread = 0;
+		for (int f = 0; f < d; f++) {
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+			for (int i = from; i < to; i++) {
+				double value = store.values[rows[i] * d + f];
+				if (value < min) min = value;
+				if (value > max) max = value;
+			}
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				node.splitFeature = f;
+			}
+		}
+		//all the rows are identical, nothing to split
+		if (node.splitFeature < 0) return node;
+		int middle = (from + to) >>> 1;
+		select(from, to - 1, middle, node.splitFeature);
+		node.splitValue = value(middle, node.splitFeature);
+		node.left = build(from, middle);
+		node.right = build(middle, to);
+		return node;
+	}
+
+	private double value(int position, int feature) {
+		return store.values[rows[position] * store.numFeatures + feature];
+	}
+
+	/**
+	 * Quickselect: reorders rows[from..to] so that position 'k' holds the row which would
+	 * be there if the range were sorted by 'feature', smaller ones before it, larger after.
+	 */
+	private void select(int from, int to, int k, int feature) {
+		while (from < to) {
+			double pivot = value((from + to) >>> 1, feature);
+			int i = from, j = to;
+			while (i <= j) {
+				while (value(i, feature) < pivot) i++;
+				while (value(j, feature) > pivot) j--;
+				if (i <= j) {
+					int swap = rows[i];
+					rows[i] = rows[j];
+					rows[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void search(double[] query, double p, NeighbourHeap nearest, int excludeFrom, int excludeTo) {
+		search(root, query, DistanceKernel.forP(p), nearest, excludeFrom, excludeTo, null);
+	}
+
+	/**
+	 * Finds the nearest rows among those 'accept' is true for.
+	 * @param query
+	 * @param kernel
+	 * @param nearest a reset heap
+	 * @param accept
+	 */
+	void search(double[] query, DistanceKernel kernel, NeighbourHeap nearest, IntPredicate accept) {
+		search(root, query, kernel, nearest, 0, 0, accept);
+	}
+
+	private void search(Node node, double[] query, DistanceKernel kernel, NeighbourHeap nearest, int excludeFrom, int excludeTo, IntPredicate accept) {
+		if (node.left == null) {
+			int d = store.numFeatures;
+			for (int i = node.from; i < node.to; i++) {
+				int row = rows[i];
+				if ((row >= excludeFrom && row < excludeTo) || (accept != null && !accept.test(row))) continue;
+				nearest.offer(row, kernel.reduced(query, 0, store.values, row * d, d));
+			}
+			return;
+		}
+		double difference = query[node.splitFeature] - node.splitValue;
+		Node near = difference < 0 ? node.left : node.right;
+		Node far = difference < 0 ? node.right : node.left;
+		search(near, query, kernel, nearest, excludeFrom, excludeTo, accept);
+		double planeDistance = kernel.axis(Math.abs(difference));
+		if (planeDistance <= nearest.worstDistance()) {
+			search(far, query, kernel, nearest, excludeFrom, excludeTo, accept);
+		}
+	}
+}
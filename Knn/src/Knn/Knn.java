@@ -2,10 +2,12 @@ package Knn;
 
 import weka.classifiers.Classifier;
 import weka.core.Capabilities;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 import Knn.Knn.DistanceCheck;
 
@@ -67,10 +69,10 @@ class DistanceCalculator {
      * @return
      */
     private static double efficientLpDistance(Instance one, Instance two, double p, double maxDistance) {
-    	double sumOfDifferencesPowP = 0.0;
+    	double sumOfDifferencesPowP = 0.0, bound = Math.pow(maxDistance, p);
     	for (int i = 0; i < (one.numAttributes() - 1); i++) {
-    		sumOfDifferencesPowP += Math.pow(one.value(i) - two.value(i), p);
-    		if (sumOfDifferencesPowP > Math.pow(maxDistance, p)) return Math.pow(sumOfDifferencesPowP, (1/p));
+    		sumOfDifferencesPowP += Math.pow(Math.abs(one.value(i) - two.value(i)), p);
+    		if (sumOfDifferencesPowP > bound) return Math.pow(sumOfDifferencesPowP, (1/p));
     	}
         return Math.pow(sumOfDifferencesPowP, 1 / p);
     }
@@ -86,7 +88,7 @@ class DistanceCalculator {
     	for (int i = 0; i < (one.numAttributes() - 1); i++) {
     		temp = Math.abs(one.value(i) - two.value(i));
     		if (maxDifference < temp) maxDifference = temp; 
-    		if (maxDifference < maxDistance) return maxDifference;
+    		if (maxDifference > maxDistance) return maxDifference;
     	}
         return maxDifference;
     }
@@ -96,31 +98,173 @@ public class Knn implements Classifier {
 
     public enum DistanceCheck{Regular, Efficient};
     public enum weightingScheme{Unweighted, Weighted};
+    /**
+     * How the neighbours are found: by scanning every training instance, through a
+     * KD-tree built over the training features, through a vantage-point tree which
+     * prunes with the triangle inequality (any p >= 1, built for the classifier's p),
+     * or approximately through a random projection forest (see setForest).
+     */
+    public enum IndexType{LinearScan, KdTree, VpTree, RpForest};
+    /**
+     * How the training features are kept: as doubles, or compact as floats, or as bytes
+     * whose best candidates are re-ranked on floats (see setPrecision).
+     */
+    public enum Precision{Double, Float, Byte};
     
-    private Instances trainingInstances;
     private int k;
     private double p;
-    private double maxDistance;
+    private double maxDistance = Double.POSITIVE_INFINITY;
     private weightingScheme scheme;
     private DistanceCheck distanceCheck;
+    private IndexType indexType;
+    //the random projection forest's shape and search budget
+    private int numTrees = 8, leafSize = 16, candidates = 512;
+    private Precision precision = Precision.Double;
+    private int rerank = 4;
+    //the trained model, replaced as a whole when the classifier is trained again
+    private volatile KnnModel model;
+    //the attributes of the training instances, without the rows
+    private Instances header;
     public double averageTime = 0.0, totalTime = 0.0;
+    //the time each fold of the last cross validation took
+    public double[] foldTimes = new double[0];
+    //distances computed by the Efficient scan, and how many of them were abandoned early
+    private final LongAdder distanceComputations = new LongAdder(), abandonedComputations = new LongAdder();
     
     public Knn(Instances instances, int k, double p, weightingScheme scheme, DistanceCheck distanceCheck) {
-    	this.trainingInstances = instances;
+    	this(instances, k, p, scheme, distanceCheck, IndexType.LinearScan);
+    }
+    
+    public Knn(Instances instances, int k, double p, weightingScheme scheme, DistanceCheck distanceCheck, IndexType indexType) {
+    	this.k = k;
+    	this.p = p;
+    	this.scheme = scheme;
+    	this.distanceCheck = distanceCheck;
+    	this.indexType = indexType;
+    	setTrainingInstances(instances);
+    }
+
+    /**
+     * A classifier scanning compact features, built directly (see setPrecision).
+     */
+    public Knn(Instances instances, int k, double p, weightingScheme scheme, DistanceCheck distanceCheck, Precision precision, int rerank) {
+    	checkPrecision(precision, rerank, IndexType.LinearScan);
     	this.k = k;
     	this.p = p;
     	this.scheme = scheme;
     	this.distanceCheck = distanceCheck;
-    	
+    	this.indexType = IndexType.LinearScan;
+    	this.precision = precision;
+    	this.rerank = rerank;
+    	setTrainingInstances(instances);
     }
     @Override
     /**
-     * Build the knn classifier. In our case, simply stores the given instances for 
-     * later use in the prediction.
+     * Build the knn classifier. Stores the given instances for later use in the
+     * prediction and builds the neighbour index over them.
      * @param instances
      */
     public void buildClassifier(Instances instances) throws Exception {
+    	setTrainingInstances(instances);
+    }
+    
+    private void setTrainingInstances(Instances instances) {
+    	this.header = new Instances(instances, 0);
+    	this.model = train(new FeatureStore(instances));
+    }
+
+    private KnnModel train(FeatureStore store) {
+    	if (precision != Precision.Double) {
+    		//the compact features are the model's only copy, the store just keeps the targets
+    		QuantizedStore quantized = new QuantizedStore(store.values, store.numRows, store.numFeatures, precision);
+    		return new KnnModel(new FeatureStore(null, store.targets, store.numFeatures), null, quantized, rerank,
+    				k, p, scheme, distanceCheck, distanceComputations, abandonedComputations);
+    	}
+    	NeighbourIndex index;
+    	switch (indexType) {
+    	case KdTree:
+    		index = new KdTree(store);
+    		break;
+    	case VpTree:
+    		index = new VpTree(store, p);
+    		break;
+    	case RpForest:
+    		index = new RpForest(store, numTrees, leafSize, candidates, 0);
+    		break;
+    	default:
+    		index = null;
+    	}
+    	return new KnnModel(store, index, k, p, scheme, distanceCheck, distanceComputations, abandonedComputations);
+    }
+
+    /**
+     * Sets up the approximate index, rebuilding the model if it uses one. More trees and
+     * candidates find more of the true neighbours, fewer make queries faster;
+     * recallReport measures the trade-off.
+     * @param numTrees number of random projection trees
+     * @param leafSize largest number of rows in a leaf
+     * @param candidates number of training rows scored per query
+     */
+    public void setForest(int numTrees, int leafSize, int candidates) {
+    	this.numTrees = numTrees;
+    	this.leafSize = leafSize;
+    	this.candidates = candidates;
+    	if (indexType == IndexType.RpForest) {
+    		this.model = train(model.rows());
+    	}
+    }
+
+    /**
+     * Sets how the training features are kept, rebuilding the model. Per row and d
+     * features the model keeps, besides the 8 bytes of the target:
+     * Double, 8d bytes; Float, 4d bytes, the features rounded to floats and scanned as
+     * they are; Byte, 5d bytes, the floats plus a byte code per feature. A byte scan reads
+     * d bytes per row and the rerank * k rows nearest by it are measured again on the
+     * floats, so the neighbours are those of a float scan unless one fell outside them.
+     * None of them references the training instances. Compact features need the LinearScan
+     * index type.
+     * The model is rebuilt from the current one's rows, so going back to Double from a
+     * compact precision keeps the float rounding until the classifier is trained again;
+     * to skip building the double model first, use the constructor taking a precision.
+     * @param precision
+     * @param rerank candidates per neighbour passed to the re-ranking, at least 1
+     */
+    public void setPrecision(Precision precision, int rerank) {
+    	checkPrecision(precision, rerank, indexType);
+    	this.precision = precision;
+    	this.rerank = rerank;
+    	this.model = train(model.rows());
+    }
+
+    private static void checkPrecision(Precision precision, int rerank, IndexType indexType) {
+    	if (rerank < 1) {
+    		throw new IllegalArgumentException("rerank must be at least 1: " + rerank);
+    	}
+    	if (precision != Precision.Double && indexType != IndexType.LinearScan) {
+    		throw new IllegalArgumentException("Compact features can only be scanned, not indexed by " + indexType);
+    	}
+    }
+
+    /**
+     * Compares the neighbours and errors of this classifier on the given instances
+     * with those of an exact search over the same training rows (for compact models,
+     * their floats).
+     * @param instances
+     * @return
+     */
+    public RecallReport recallReport(Instances instances) {
+    	KnnModel model = this.model;
+    	KnnModel exact = new KnnModel(model.rows(), null, k, p, scheme, DistanceCheck.Regular, new LongAdder(), new LongAdder());
+    	return RecallReport.compare(model, exact, instances);
+    }
 
+    /**
+     * The model trained on the current training instances. It is immutable, so it can
+     * be queried concurrently and keeps working if the classifier is trained again.
+     * @return
+     */
+    public KnnModel getModel() {
+    	return model;
     }
     
     /**
@@ -139,10 +283,20 @@ public class Knn implements Classifier {
      * @return The instance predicted value.
      */
     public double regressionPrediction(Instance instance) {
-    	PriorityQueue<Neighbour> nearestNeighbours = findNearestNeighbors(instance);
-    	if (scheme == weightingScheme.Unweighted) {
-    		return getAverageValue(nearestNeighbours);
-    	} else return getWeightedAverageValue(instance, nearestNeighbours); 
+    	return model.predict(instance);
+    }
+
+    /**
+     * The first row of a cross validation fold, as in Instances.trainCV: the first
+     * numRows % numFolds folds have one row more than the others.
+     * foldStart(numRows, numFolds, numFolds) is numRows.
+     * @param numRows
+     * @param numFolds
+     * @param fold
+     * @return
+     */
+    static int foldStart(int numRows, int numFolds, int fold) {
+    	return fold * (numRows / numFolds) + Math.min(fold, numRows % numFolds);
     }
 
     /**
@@ -153,55 +307,104 @@ public class Knn implements Classifier {
      * @return
      */
     public double calcAvgError (Instances instances){
-    	double sum = 0;
-        for (Instance x : instances) {
-        	sum += Math.abs(regressionPrediction(x) - x.classValue());
-        }
-        return sum / (double) instances.numInstances();
+    	return model.averageError(instances);
     }
 
     /**
      * Calculates the cross validation error, the average error on all folds.
      * updates "totalTime" and "averageTime" fields of the object
+     * The folds are the ones of Instances.trainCV/testCV, but nothing is copied; with
+     * as many folds as instances (leave one out) every instance just excludes itself.
      * @param instances Instances used for the cross validation
      * @param num_of_folds The number of folds to use.
      * @return The cross validation error.
      */
     public double crossValidationError(Instances instances, int num_of_folds) {
-    	double errorsSum = 0.0, startingTime, totalTime = 0;
-    	for (int i = 0; i < num_of_folds; i++) {
-    		trainingInstances = instances.trainCV(num_of_folds, i);
-    		startingTime = System.nanoTime();
-    		errorsSum += calcAvgError (instances.testCV(num_of_folds, i));
-    		totalTime += (System.nanoTime() - startingTime);
+    	//the folds are views over one model: a test row searches every row outside its fold
+    	KnnModel model = this.model;
+    	if (model.store.instances != instances) {
+    		model = train(new FeatureStore(instances));
+    	}
+    	double[] foldErrors = new double[num_of_folds], foldTimes = new double[num_of_folds];
+    	double error = model.crossValidationError(num_of_folds, foldErrors, foldTimes), totalTime = 0;
+    	for (double time : foldTimes) {
+    		totalTime += time;
     	}
+    	this.foldTimes = foldTimes;
     	this.totalTime = totalTime;
     	this.averageTime = totalTime / num_of_folds;
-    	return (errorsSum / num_of_folds);
+    	return error;
     }
 
     /**
      * Finds the k nearest neighbors.
+     * Kept for callers which want Neighbour objects, the prediction uses KnnModel.findNearestRows.
      * @param instance
      */
     public PriorityQueue<Neighbour> findNearestNeighbors(Instance instance) {
-    	PriorityQueue<Neighbour> nn = new PriorityQueue<>(k);
-    	//Initialize our priority queue with infinite values
-    	for (int i = 0; i < k; i++) {
-    		nn.add(new Neighbour(Double.MAX_VALUE, null));
-    	}
-    	//Check the distance between each instance in our data to the desired instance
-    	// and insert instances closer to our instance
-    	for (Instance dataInstance : trainingInstances) {
-    		Neighbour currNeighbour = new Neighbour(distance(instance, dataInstance), dataInstance);
-    		if (currNeighbour.distance < nn.peek().distance) {
-    			nn.remove();
-    			nn.add(currNeighbour);
-    		}
+    	KnnModel model = this.model;
+    	NeighbourHeap nearest = model.findNearestRows(instance);
+    	PriorityQueue<Neighbour> nn = new PriorityQueue<>(Math.max(1, nearest.size()));
+    	for (int i = 0; i < nearest.size(); i++) {
+    		nn.add(new Neighbour(nearest.distance(i), trainingInstance(model, nearest.row(i))));
     	}
     	return nn;
     }
 
+    /**
+     * The training instance of a row, rebuilt from the model's rows when it doesn't
+     * reference the instances (compact features).
+     */
+    private Instance trainingInstance(KnnModel model, int row) {
+    	FeatureStore store = model.store;
+    	if (store.instances != null) {
+    		return store.instances.instance(row);
+    	}
+    	double[] values = new double[store.numFeatures + 1];
+    	model.features(row, values, 0);
+    	values[store.numFeatures] = store.targets[row];
+    	DenseInstance instance = new DenseInstance(1.0, values);
+    	instance.setDataset(header);
+    	return instance;
+    }
+
+    /**
+     * Finds the k nearest neighbors without allocating, see KnnModel.findNearestRows.
+     * @param instance
+     * @return
+     */
+    public NeighbourHeap findNearestRows(Instance instance) {
+    	return model.findNearestRows(instance);
+    }
+
+    /**
+     * @return the number of distances the Efficient scan computed since the last reset
+     */
+    public long getDistanceComputations() {
+    	return distanceComputations.sum();
+    }
+
+    /**
+     * @return how many of the Efficient scan's distances reached the bound, i.e. were
+     * abandoned early or rejected, since the last reset
+     */
+    public long getAbandonedComputations() {
+    	return abandonedComputations.sum();
+    }
+
+    /**
+     * @return the fraction of the Efficient scan's distances that reached the bound
+     */
+    public double getPruneRate() {
+    	long computations = distanceComputations.sum();
+    	return computations == 0 ? 0.0 : abandonedComputations.sum() / (double) computations;
+    }
+
+    public void resetCounters() {
+    	distanceComputations.reset();
+    	abandonedComputations.reset();
+    }
+
     /**
      * Cacluates the average value of the given elements in the collection.
      * @param
@@ -234,7 +437,6 @@ public class Knn implements Classifier {
         return numSum / denumSum;
     }
 
-
     @Override
     public double[] distributionForInstance(Instance arg0) throws Exception {
         // TODO Auto-generated method stub - You can ignore.
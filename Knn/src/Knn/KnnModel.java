@@ -0,0 +1,386 @@
+package Knn;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+import Knn.Knn.DistanceCheck;
+import Knn.Knn.weightingScheme;
+
+/**
+ * A trained Knn: the training features, their index and the search parameters.
+ * Nothing in it changes after construction and every query works on per thread
+ * scratch, so one model can be queried from any number of threads; Knn builds a new
+ * model when it's trained again. The batch methods spread their work over the
+ * common fork-join pool.
+ */
+public final class KnnModel {
+	//per thread scratch, reused by every query
+	private static final ThreadLocal<NeighbourHeap> heaps = ThreadLocal.withInitial(NeighbourHeap::new);
+	private static final ThreadLocal<NeighbourHeap> candidateHeaps = ThreadLocal.withInitial(NeighbourHeap::new);
+	private static final ThreadLocal<double[]> queries = ThreadLocal.withInitial(() -> new double[0]);
+	private static final ThreadLocal<NeighbourHeap[]> blockHeaps = ThreadLocal.withInitial(() -> {
+		NeighbourHeap[] heaps = new NeighbourHeap[BlockedL2.QUERY_TILE];
+		for (int i = 0; i < heaps.length; i++) {
+			heaps[i] = new NeighbourHeap();
+		}
+		return heaps;
+	});
+	final FeatureStore store;
+	private final NeighbourIndex index;
+	//batch search for Euclidean scans, null for other configurations
+	private final BlockedL2 blockedL2;
+	//compact features scanned before re-ranking, null to scan the store's doubles
+	private final QuantizedStore quantized;
+	//how many candidates per neighbour the compact scan passes to the re-ranking
+	private final int rerank;
+	private final int k;
+	private final double p;
+	private final DistanceKernel kernel;
+	private final weightingScheme scheme;
+	private final DistanceCheck distanceCheck;
+	//distances computed by the Efficient scan, and how many of them reached the bound
+	private final LongAdder distanceComputations, abandonedComputations;
+
+	KnnModel(FeatureStore store, NeighbourIndex index, int k, double p, weightingScheme scheme, DistanceCheck distanceCheck,
+			LongAdder distanceComputations, LongAdder abandonedComputations) {
+		this(store, index, null, 0, k, p, scheme, distanceCheck, distanceComputations, abandonedComputations);
+	}
+
+	/**
+	 * A model scanning compact features, which are its only copy of the training features
+	 * (the store just gives the targets). Floats are scanned as they are; with bytes the
+	 * rerank * k rows nearest by the byte distance are measured again on the floats.
+	 */
+	KnnModel(FeatureStore store, NeighbourIndex index, QuantizedStore quantized, int rerank, int k, double p, weightingScheme scheme,
+			DistanceCheck distanceCheck, LongAdder distanceComputations, LongAdder abandonedComputations) {
+		this.store = store;
+		this.index = index;
+		this.quantized = quantized;
+		this.rerank = rerank;
+		this.k = k;
+		this.p = p;
+		this.kernel = DistanceKernel.forP(p);
+		this.scheme = scheme;
+		this.distanceCheck = distanceCheck;
+		this.distanceComputations = distanceComputations;
+		this.abandonedComputations = abandonedComputations;
+		this.blockedL2 = p == 2 && index == null && quantized == null && distanceCheck == DistanceCheck.Regular ? new BlockedL2(store) : null;
+	}
+
+	/**
+	 * Returns the knn prediction on the given instance.
+	 * @param instance
+	 * @return
+	 */
+	public double predict(Instance instance) {
+		return predict(findNearestRows(instance));
+	}
+
+	/**
+	 * Predicts the target of a training row from the rows outside [excludeFrom, excludeTo).
+	 * @param row
+	 * @param excludeFrom
+	 * @param excludeTo
+	 * @return
+	 */
+	double predict(int row, int excludeFrom, int excludeTo) {
+		return predict(findNearestRows(row, excludeFrom, excludeTo));
+	}
+
+	double predict(NeighbourHeap nearest) {
+		if (scheme == weightingScheme.Unweighted) {
+			return getAverageValue(nearest);
+		} else return getWeightedAverageValue(nearest);
+	}
+
+	/**
+	 * Predicts all the instances in parallel.
+	 * @param instances
+	 * @return the predictions, in the order of the instances
+	 */
+	public double[] predict(Instances instances) {
+		double[] predictions = new double[instances.numInstances()];
+		if (blockedL2 == null) {
+			IntStream.range(0, predictions.length).parallel().forEach(i -> predictions[i] = predict(instances.instance(i)));
+		} else {
+			int numBlocks = (predictions.length + BlockedL2.QUERY_TILE - 1) / BlockedL2.QUERY_TILE;
+			IntStream.range(0, numBlocks).parallel().forEach(block -> {
+				int from = block * BlockedL2.QUERY_TILE, to = Math.min(from + BlockedL2.QUERY_TILE, predictions.length);
+				double[] query = queryBuffer(BlockedL2.QUERY_TILE);
+				for (int i = from; i < to; i++) {
+					FeatureStore.features(instances.instance(i), query, (i - from) * store.numFeatures);
+				}
+				predictBlock(query, to - from, 0, 0, predictions, from);
+			});
+		}
+		return predictions;
+	}
+
+	/**
+	 * Predicts a block of queries through the blocked Euclidean search.
+	 * @param query the features of the queries, one after another
+	 * @param numQueries
+	 * @param excludeFrom
+	 * @param excludeTo
+	 * @param predictions receives the predictions from 'offset' on
+	 * @param offset
+	 */
+	private void predictBlock(double[] query, int numQueries, int excludeFrom, int excludeTo, double[] predictions, int offset) {
+		NeighbourHeap[] nearest = blockHeaps.get();
+		for (int i = 0; i < numQueries; i++) {
+			nearest[i].reset(Math.min(k, store.numRows - (excludeTo - excludeFrom)));
+		}
+		blockedL2.search(query, numQueries, nearest, excludeFrom, excludeTo);
+		for (int i = 0; i < numQueries; i++) {
+			nearest[i].sort();
+			nearest[i].fromReduced(kernel);
+			predictions[offset + i] = predict(nearest[i]);
+		}
+	}
+
+	/**
+	 * The average absolute error on the given instances, predicted in parallel.
+	 * @param instances
+	 * @return
+	 */
+	public double averageError(Instances instances) {
+		double[] predictions = predict(instances);
+		double sum = 0;
+		for (int i = 0; i < predictions.length; i++) {
+			sum += Math.abs(predictions[i] - instances.instance(i).classValue());
+		}
+		return sum / (double) instances.numInstances();
+	}
+
+	/**
+	 * Cross validation over the training rows, the folds running in parallel.
+	 * Fold 'i' is the rows [Knn.foldStart(i), Knn.foldStart(i + 1)), predicted from all the other rows.
+	 * @param numFolds
+	 * @param foldErrors receives the average absolute error of every fold
+	 * @param foldTimes receives the time every fold took, in nanoseconds
+	 * @return the cross validation error, the average of the fold errors
+	 */
+	public double crossValidationError(int numFolds, double[] foldErrors, double[] foldTimes) {
+		IntStream.range(0, numFolds).parallel().forEach(fold -> {
+			long startingTime = System.nanoTime();
+			int first = Knn.foldStart(store.numRows, numFolds, fold), end = Knn.foldStart(store.numRows, numFolds, fold + 1);
+			double sum = 0;
+			if (blockedL2 == null) {
+				for (int row = first; row < end; row++) {
+					sum += Math.abs(predict(row, first, end) - store.targets[row]);
+				}
+			} else {
+				int d = store.numFeatures;
+				double[] query = queryBuffer(BlockedL2.QUERY_TILE), predictions = new double[BlockedL2.QUERY_TILE];
+				for (int from = first; from < end; from += BlockedL2.QUERY_TILE) {
+					int to = Math.min(from + BlockedL2.QUERY_TILE, end);
+					System.arraycopy(store.values, from * d, query, 0, (to - from) * d);
+					predictBlock(query, to - from, first, end, predictions, 0);
+					for (int row = from; row < to; row++) {
+						sum += Math.abs(predictions[row - from] - store.targets[row]);
+					}
+				}
+			}
+			foldErrors[fold] = sum / (double) (end - first);
+			foldTimes[fold] = System.nanoTime() - startingTime;
+		});
+		double errorsSum = 0.0;
+		for (int fold = 0; fold < numFolds; fold++) {
+			errorsSum += foldErrors[fold];
+		}
+		return errorsSum / numFolds;
+	}
+
+	/**
+	 * Finds the k nearest neighbors: the rows (indices into the training instances)
+	 * and their distances, nearest first.
+	 * The heap belongs to the calling thread and is overwritten by its next query.
+	 * @param instance
+	 * @return
+	 */
+	public NeighbourHeap findNearestRows(Instance instance) {
+		double[] query = queryBuffer(1);
+		FeatureStore.features(instance, query, 0);
+		return search(query, 0, 0);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of a training row among the rows outside
+	 * [excludeFrom, excludeTo), which should contain the row itself.
+	 * @param row
+	 * @param excludeFrom
+	 * @param excludeTo
+	 * @return the calling thread's heap, as in findNearestRows(Instance)
+	 */
+	NeighbourHeap findNearestRows(int row, int excludeFrom, int excludeTo) {
+		double[] query = queryBuffer(1);
+		features(row, query, 0);
+		return search(query, excludeFrom, excludeTo);
+	}
+
+	/**
+	 * Copies the features of a training row into 'destination' at 'offset', at the precision
+	 * the model keeps them.
+	 */
+	void features(int row, double[] destination, int offset) {
+		if (quantized != null) {
+			quantized.decode(row, destination, offset);
+		} else {
+			System.arraycopy(store.values, row * store.numFeatures, destination, offset, store.numFeatures);
+		}
+	}
+
+	/**
+	 * The training rows as doubles: the store itself, or for compact models a copy of the
+	 * floats (so at float precision).
+	 */
+	FeatureStore rows() {
+		if (quantized == null) {
+			return store;
+		}
+		double[] values = new double[store.numRows * store.numFeatures];
+		for (int row = 0; row < store.numRows; row++) {
+			quantized.decode(row, values, row * store.numFeatures);
+		}
+		return new FeatureStore(values, store.targets, store.numFeatures);
+	}
+
+	double target(int row) {
+		return store.targets[row];
+	}
+
+	/**
+	 * The calling thread's buffer, with room for the features of 'numQueries' queries.
+	 */
+	private double[] queryBuffer(int numQueries) {
+		double[] query = queries.get();
+		if (query.length < numQueries * store.numFeatures) {
+			query = new double[numQueries * store.numFeatures];
+			queries.set(query);
+		}
+		return query;
+	}
+
+	private NeighbourHeap search(double[] query, int excludeFrom, int excludeTo) {
+		NeighbourHeap nearest = heaps.get();
+		nearest.reset(Math.min(k, store.numRows - (excludeTo - excludeFrom)));
+		//the indices prune on their own, the early abandoning of Efficient applies to the scan
+		if (quantized != null) {
+			compactScan(query, nearest, excludeFrom, excludeTo);
+		} else if (index != null) {
+			index.search(query, p, nearest, excludeFrom, excludeTo);
+		} else if (distanceCheck == DistanceCheck.Efficient) {
+			efficientScan(query, nearest, 0, excludeFrom);
+			efficientScan(query, nearest, excludeTo, store.numRows);
+		} else {
+			scan(query, nearest, 0, excludeFrom);
+			scan(query, nearest, excludeTo, store.numRows);
+		}
+		nearest.sort();
+		nearest.fromReduced(kernel);
+		return nearest;
+	}
+
+	/**
+	 * Scans the compact features. Floats go straight to the heap; bytes give the
+	 * rerank * k nearest candidates, offered to the heap with their distances on the floats.
+	 */
+	private void compactScan(double[] query, NeighbourHeap nearest, int excludeFrom, int excludeTo) {
+		if (!quantized.coded()) {
+			quantized.scan(query, kernel, nearest, 0, excludeFrom);
+			quantized.scan(query, kernel, nearest, excludeTo, store.numRows);
+			return;
+		}
+		NeighbourHeap candidates = candidateHeaps.get();
+		candidates.reset(Math.min(rerank * nearest.capacity(), store.numRows - (excludeTo - excludeFrom)));
+		quantized.scan(query, kernel, candidates, 0, excludeFrom);
+		quantized.scan(query, kernel, candidates, excludeTo, store.numRows);
+		for (int i = 0; i < candidates.size(); i++) {
+			int row = candidates.row(i);
+			nearest.offer(row, quantized.distance(query, kernel, row));
+		}
+	}
+
+	/**
+	 * Offers the training rows [from, to) to the heap.
+	 */
+	private void scan(double[] query, NeighbourHeap nearest, int from, int to) {
+		int d = store.numFeatures;
+		for (int row = from; row < to; row++) {
+			nearest.offer(row, kernel.reduced(query, 0, store.values, row * d, d));
+		}
+	}
+
+	/**
+	 * Scans the training rows [from, to), abandoning a distance as soon as it passes the
+	 * current k-th nearest one (compared in reduced form, so without roots).
+	 */
+	private void efficientScan(double[] query, NeighbourHeap nearest, int from, int to) {
+		int d = store.numFeatures, abandoned = 0;
+		for (int row = from; row < to; row++) {
+			double bound = nearest.worstDistance();
+			double distance = kernel.bounded(query, 0, store.values, row * d, d, bound);
+			if (distance < bound) {
+				nearest.offer(row, distance);
+			} else {
+				abandoned++;
+			}
+		}
+		distanceComputations.add(to - from);
+		abandonedComputations.add(abandoned);
+	}
+
+	/**
+	 * Cacluates the average target value of the given rows.
+	 * @param nearest
+	 * @return
+	 */
+	double getAverageValue(NeighbourHeap nearest) {
+		return getAverageValue(nearest, store.targets);
+	}
+
+	/**
+	 * @param nearest
+	 * @param targets the targets, indexed by the heap's rows
+	 * @return
+	 */
+	static double getAverageValue(NeighbourHeap nearest, double[] targets) {
+		double sum = 0.0;
+		for (int i = 0; i < nearest.size(); i++) {
+			sum += targets[nearest.row(i)];
+		}
+		return sum / (double) nearest.size();
+	}
+
+	/**
+	 * Calculates the weighted average of the target values of the given rows, using
+	 * the distances found by the search.
+	 * @param nearest rows sorted nearest first
+	 * @return
+	 */
+	double getWeightedAverageValue(NeighbourHeap nearest) {
+		return getWeightedAverageValue(nearest, store.targets);
+	}
+
+	/**
+	 * @param nearest rows sorted nearest first
+	 * @param targets the targets, indexed by the heap's rows
+	 * @return
+	 */
+	static double getWeightedAverageValue(NeighbourHeap nearest, double[] targets) {
+		double numSum = 0.0, denumSum = 0.0, Wi = 0.0;
+		for (int i = 0; i < nearest.size(); i++) {
+			double dis = nearest.distance(i), target = targets[nearest.row(i)];
+			if (dis == 0) {
+				return target;
+			}
+			Wi = 1 / (dis * dis);
+			numSum += Wi * target;
+			denumSum += Wi;
+		}
+		return numSum / denumSum;
+	}
+}
@@ -6,11 +6,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Random;
 
+import Knn.CrossValidationGrid.Configuration;
 import Knn.Knn.DistanceCheck;
 import Knn.Knn.weightingScheme;
 import weka.core.Instances;
 
-public class Main {
+public class MainHW3 {
 
 	public static BufferedReader readDataFile(String filename) {
 		BufferedReader inputReader = null;
@@ -37,69 +38,39 @@ public class Main {
 		Knn knn;
 		int minK = 0;
 		String majorityFun = "";
-		double minP = 0.0, CrossValidationError = Double.MAX_VALUE, minError = Double.MAX_VALUE;
+		double minP = 0.0, minError = Double.MAX_VALUE;
 		data.randomize(new Random());
 		int [] num_of_folds = new int [] {data.numInstances(), 50, 10, 5, 3};	
 		double averageTime, totalTime;
+		//the grid is cross validated in full, unless "-race" asks for successive halving
+		double[] lps = new double[] {1, 2, 3, 4};
+		SuccessiveHalving race = args.length > 0 && args[0].equals("-race") ? new SuccessiveHalving(2, 2, 1.5) : null;
+		Configuration best;
 		
 		//unscaled data
-        for (int k = 1; k <= 20; k++) {
-        	for (int p = 1; p <= 4; p++) {
-        		//checking for scheme = Weighted
-        		knn = new Knn (data, k, p, weightingScheme.Weighted, DistanceCheck.Regular);
-        		CrossValidationError = knn.crossValidationError(data, 10);
-        		if (minError > CrossValidationError) {
-        			minError = CrossValidationError;
-        			minK = k;
-        			minP = (double) p;
-        			majorityFun = "weighted";
-        		}
-        		//checking for scheme = Unweighted = uniform
-        		knn = new Knn (data, k, p, weightingScheme.Unweighted, DistanceCheck.Regular);
-        		CrossValidationError = knn.crossValidationError(data, 10);
-        		if (minError > CrossValidationError) {
-        			minError = CrossValidationError;
-        			minK = k;
-        			minP = (double) p;
-        			majorityFun = "uniform";
-        		}
-        	}
-        }
+        best = bestConfiguration(data, lps, race);
+        minError = best.error;
+        minK = best.k;
+        minP = best.p;
+        majorityFun = best.scheme == weightingScheme.Weighted ? "weighted" : "uniform";
         					 
         System.out.println("-----------------------------" + "\n" + "Results for original dataset: " + "\n" + "-----------------------------" +
         "\n" + "Cross validation error with K = " + minK + ", lp = " + minP + ", majority function = " + 
         majorityFun + " for auto_price data is: " + minError);
+        printComputations(race);
         
         //scaled data
         data = FeatureScaler.scaleData(data);
-        CrossValidationError = Double.MAX_VALUE;
-        minError = Double.MAX_VALUE;
-        for (int k = 1; k <= 20; k++) {
-        	for (int p = 1; p <= 4; p++) {
-        		//checking for scheme = Weighted
-        		knn = new Knn (data, k, p, weightingScheme.Weighted, DistanceCheck.Regular);
-        		CrossValidationError = knn.crossValidationError(data, 10);
-        		if (minError > CrossValidationError) {
-        			minError = CrossValidationError;
-        			minK = k;
-        			minP = (double) p;
-        			majorityFun = "weighted";
-        		}
-        		//checking for scheme = Unweighted = uniform
-        		knn = new Knn (data, k, p, weightingScheme.Unweighted, DistanceCheck.Regular);
-        		CrossValidationError = knn.crossValidationError(data, 10);
-        		if (minError > CrossValidationError) {
-        			minError = CrossValidationError;
-        			minK = k;
-        			minP = (double) p;
-        			majorityFun = "uniform";
-        		}
-        	}
-        }
+        best = bestConfiguration(data, lps, race);
+        minError = best.error;
+        minK = best.k;
+        minP = best.p;
+        majorityFun = best.scheme == weightingScheme.Weighted ? "weighted" : "uniform";
         					 
         System.out.println("\n-----------------------------" + "\n" + "Results for scaled dataset: " + "\n" + "-----------------------------" +
         "\n" + "Cross validation error with K = " + minK + ", lp = " + minP + ", majority function = " + 
         majorityFun + " for auto_price data is: " + minError);
+        printComputations(race);
         
         //in case minimum validation error was accepted from weighted scheme
         if (majorityFun.equals("weighted")) {
@@ -146,4 +117,43 @@ public class Main {
         	}
         }
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The configuration (k up to 20, the given lps, both schemes) with the lowest 10 fold
+	 * cross validation error; ties go to the smaller k, then lp, then to weighted.
+	 * @param data
+	 * @param lps
+	 * @param race races the grid when set, otherwise all of it is cross validated
+	 * @return
+	 */
+	private static Configuration bestConfiguration(Instances data, double[] lps, SuccessiveHalving race) {
+		Configuration best = null;
+		if (race != null) {
+			for (Configuration configuration : race.race(data, 10, 20, lps)) {
+				if (best == null || best.error > configuration.error) {
+					best = configuration;
+				}
+			}
+			return best;
+		}
+		double[][][] errors = CrossValidationGrid.errors(data, 10, 20, lps);
+		for (int k = 1; k <= 20; k++) {
+			for (int p = 0; p < lps.length; p++) {
+				for (weightingScheme scheme : new weightingScheme[] {weightingScheme.Weighted, weightingScheme.Unweighted}) {
+					double error = errors[p][k - 1][scheme.ordinal()];
+					if (best == null || best.error > error) {
+						best = new Configuration(k, lps[p], scheme, error);
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private static void printComputations(SuccessiveHalving race) {
+		if (race != null) {
+			System.out.println("Successive halving computed " + race.distanceComputations + " distances, the full grid "
+					+ race.gridComputations);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package Knn;
+
+/**
+ * A bounded max-heap of the k nearest rows found so far, kept in two parallel
+ * primitive arrays so a search allocates nothing. The worst (farthest) neighbour
+ * is on top; of two rows at the same distance the later row counts as farther,
+ * which keeps the earliest rows on ties, as scanning in order with a strict
+ * comparison does. The PriorityQueue search this replaced kept an arbitrary row of a
+ * tie at the k-th place, so on data with many equal distances (e.g. L1 over integer
+ * features) the predictions and cross validation errors differ from its ones.
+ * A heap is meant to be reused: call reset before every search.
+ */
+public final class NeighbourHeap {
+	private int[] rows = new int[0];
+	private double[] distances = new double[0];
+	private int k, size;
+
+	/**
+	 * Empties the heap and sets its capacity.
+	 * @param k
+	 */
+	public void reset(int k) {
+		if (rows.length < k) {
+			rows = new int[k];
+			distances = new double[k];
+		}
+		this.k = k;
+		this.size = 0;
+	}
+
+	public int capacity() {
+		return k;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * The distance of the current k-th nearest row, infinite until the heap is full.
+	 * @return
+	 */
+	public double worstDistance() {
+		if (k == 0) return Double.NEGATIVE_INFINITY;
+		return size < k ? Double.POSITIVE_INFINITY : distances[0];
+	}
+
+	/**
+	 * @param i position in the heap, in [0, size)
+	 * @return the row at the position, an index into the training instances
+	 */
+	public int row(int i) {
+		return rows[i];
+	}
+
+	/**
+	 * @param i position in the heap, in [0, size)
+	 * @return the distance of the row at the position
+	 */
+	public double distance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * Adds the row if it's nearer than the current k-th nearest one.
+	 * @param row
+	 * @param distance
+	 * @return whether the row was added
+	 */
+	public boolean offer(int row, double distance) {
+		if (size < k) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!farther(distance, row, distances[parent], rows[parent])) break;
+				rows[i] = rows[parent];
+				distances[i] = distances[parent];
+				i = parent;
+			}
+			rows[i] = row;
+			distances[i] = distance;
+			return true;
+		}
+		if (k == 0 || !farther(distances[0], rows[0], distance, row)) {
+			return false;
+		}
+		siftDown(0, size, row, distance);
+		return true;
+	}
+
+	/**
+	 * Orders the contents by ascending distance (then row), after which positions
+	 * 0..size-1 go from nearest to farthest. The heap must be reset before it's offered to again.
+	 */
+	public void sort() {
+		for (int end = size - 1; end > 0; end--) {
+			int row = rows[end];
+			double distance = distances[end];
+			rows[end] = rows[0];
+			distances[end] = distances[0];
+			siftDown(0, end, row, distance);
+		}
+	}
+
+	/**
+	 * Turns every reduced distance into the distance itself, which keeps their order.
+	 */
+	void fromReduced(DistanceKernel kernel) {
+		for (int i = 0; i < size; i++) {
+			distances[i] = kernel.distance(distances[i]);
+		}
+	}
+
+	private void siftDown(int i, int end, int row, double distance) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= end) break;
+			if (child + 1 < end && farther(distances[child + 1], rows[child + 1], distances[child], rows[child])) {
+				child++;
+			}
+			if (!farther(distances[child], rows[child], distance, row)) break;
+			rows[i] = rows[child];
+			distances[i] = distances[child];
+			i = child;
+		}
+		rows[i] = row;
+		distances[i] = distance;
+	}
+
+	private static boolean farther(double distance, int row, double otherDistance, int otherRow) {
+		return distance > otherDistance || (distance == otherDistance && row > otherRow);
+	}
+}
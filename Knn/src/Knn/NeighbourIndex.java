@@ -0,0 +1,23 @@
+package Knn;
+
+/**
+ * A structure over the training features which answers k nearest neighbour queries
+ * faster than scanning every training instance. The answers may be approximate: KdTree
+ * and VpTree return the exact neighbours, RpForest returns rows with their exact
+ * distances but may miss some true neighbours (RecallReport measures how many), so a
+ * caller which needs the exact neighbours, e.g. to compare with a scan, must not take an
+ * RpForest.
+ */
+interface NeighbourIndex {
+	/**
+	 * Finds the rows nearest to the query, as many as the heap's capacity (approximately
+	 * for an approximate index).
+	 * @param query the query's features
+	 * @param p
+	 * @param nearest a reset heap which receives the rows with their reduced distances
+	 *        (see DistanceKernel)
+	 * @param excludeFrom first of a range of rows to leave out, e.g. a cross validation fold
+	 * @param excludeTo end of the range, equal to 'excludeFrom' to search every row
+	 */
+	void search(double[] query, double p, NeighbourHeap nearest, int excludeFrom, int excludeTo);
+}
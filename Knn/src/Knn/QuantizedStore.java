@@ -0,0 +1,160 @@
+package Knn;
+
+import java.util.Arrays;
+
+import Knn.Knn.Precision;
+
+/**
+ * The training features of a compact model, its only copy of them: 32 bit floats, plus
+ * for Byte one byte per feature quantised linearly between the feature's minimum and
+ * maximum (256 levels). A scan measures each row against the full precision query, floats
+ * decoded back to doubles and bytes through per query distance tables, which for bytes is
+ * only off by half a level per feature. The callers re-rank the best rows of a byte scan
+ * on the floats (see distance).
+ */
+class QuantizedStore {
+	final int numRows, numFeatures;
+	//the features as floats, and with Byte precision also their codes (null otherwise)
+	private final float[] floats;
+	private final byte[] codes;
+	//a code c stands for minimum[f] + (c + 128) * scale[f], that is origin[f] + c * scale[f]
+	private final double[] minimum, scale, origin;
+	//per thread scratch: a row decoded from the floats, and the distance tables of a byte scan
+	private static final ThreadLocal<double[]> rows = ThreadLocal.withInitial(() -> new double[0]);
+	private static final ThreadLocal<double[]> tables = ThreadLocal.withInitial(() -> new double[0]);
+
+	/**
+	 * @param values the full precision rows, row-major, which aren't kept
+	 * @param numRows
+	 * @param numFeatures
+	 * @param precision Float or Byte
+	 */
+	QuantizedStore(double[] values, int numRows, int numFeatures, Precision precision) {
+		this.numRows = numRows;
+		this.numFeatures = numFeatures;
+		floats = new float[numRows * numFeatures];
+		for (int i = 0; i < numRows * numFeatures; i++) {
+			floats[i] = (float) values[i];
+		}
+		if (precision == Precision.Float) {
+			codes = null;
+			minimum = scale = origin = null;
+			return;
+		}
+		if (precision != Precision.Byte) {
+			throw new IllegalArgumentException("Not a compact precision: " + precision);
+		}
+		codes = new byte[numRows * numFeatures];
+		minimum = new double[numFeatures];
+		scale = new double[numFeatures];
+		origin = new double[numFeatures];
+		double[] maximum = new double[numFeatures];
+		Arrays.fill(minimum, Double.MAX_VALUE);
+		Arrays.fill(maximum, -Double.MAX_VALUE);
+		for (int r = 0; r < numRows; r++) {
+			for (int f = 0; f < numFeatures; f++) {
+				minimum[f] = Math.min(minimum[f], values[r * numFeatures + f]);
+				maximum[f] = Math.max(maximum[f], values[r * numFeatures + f]);
+			}
+		}
+		for (int f = 0; f < numFeatures; f++) {
+			scale[f] = numRows == 0 ? 0 : (maximum[f] - minimum[f]) / 255;
+			origin[f] = minimum[f] + 128 * scale[f];
+		}
+		for (int r = 0; r < numRows; r++) {
+			for (int f = 0; f < numFeatures; f++) {
+				long level = scale[f] == 0 ? 0 : Math.round((values[r * numFeatures + f] - minimum[f]) / scale[f]);
+				codes[r * numFeatures + f] = (byte) (level - 128);
+			}
+		}
+	}
+
+	/**
+	 * Offers the rows [from, to) to the heap, with their distances to the query computed
+	 * on the compact values. Bytes are scanned through a table of each feature's 256
+	 * reduced distances to the query, built once per call, so a row costs one lookup and
+	 * add (or max) per feature.
+	 */
+	void scan(double[] query, DistanceKernel kernel, NeighbourHeap nearest, int from, int to) {
+		if (from >= to) return;
+		if (codes != null) {
+			scanCodes(query, kernel, nearest, from, to);
+			return;
+		}
+		double[] decoded = rows.get();
+		if (decoded.length < numFeatures) {
+			decoded = new double[numFeatures];
+			rows.set(decoded);
+		}
+		for (int row = from; row < to; row++) {
+			decode(row, decoded);
+			nearest.offer(row, kernel.reduced(query, 0, decoded, 0, numFeatures));
+		}
+	}
+
+	private void scanCodes(double[] query, DistanceKernel kernel, NeighbourHeap nearest, int from, int to) {
+		double[] table = tables.get();
+		if (table.length < numFeatures * 256) {
+			table = new double[numFeatures * 256];
+			tables.set(table);
+		}
+		//table[f * 256 + c + 128] is the reduced distance along f from the query to code c
+		for (int f = 0; f < numFeatures; f++) {
+			for (int c = -128; c < 128; c++) {
+				table[f * 256 + c + 128] = kernel.axis(Math.abs(query[f] - (origin[f] + c * scale[f])));
+			}
+		}
+		int offset = from * numFeatures;
+		if (kernel.maximum()) {
+			for (int row = from; row < to; row++) {
+				double distance = 0;
+				for (int f = 0; f < 256 * numFeatures; f += 256) {
+					distance = Math.max(distance, table[f + codes[offset++] + 128]);
+				}
+				nearest.offer(row, distance);
+			}
+		} else {
+			for (int row = from; row < to; row++) {
+				double distance = 0;
+				for (int f = 0; f < 256 * numFeatures; f += 256) {
+					distance += table[f + codes[offset++] + 128];
+				}
+				nearest.offer(row, distance);
+			}
+		}
+	}
+
+	/**
+	 * Whether the scans measure bytes, so their best rows need re-ranking on the floats.
+	 */
+	boolean coded() {
+		return codes != null;
+	}
+
+	/**
+	 * The reduced distance from the query to a row's floats.
+	 */
+	double distance(double[] query, DistanceKernel kernel, int row) {
+		double[] decoded = rows.get();
+		if (decoded.length < numFeatures) {
+			decoded = new double[numFeatures];
+			rows.set(decoded);
+		}
+		decode(row, decoded);
+		return kernel.reduced(query, 0, decoded, 0, numFeatures);
+	}
+
+	/**
+	 * Copies a row's floats, as doubles, into 'destination' at 'offset'.
+	 */
+	void decode(int row, double[] destination, int offset) {
+		int from = row * numFeatures;
+		for (int f = 0; f < numFeatures; f++) {
+			destination[offset + f] = floats[from + f];
+		}
+	}
+
+	private void decode(int row, double[] destination) {
+		decode(row, destination, 0);
+	}
+}
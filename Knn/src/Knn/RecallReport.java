@@ -0,0 +1,92 @@
+package Knn;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * How close an approximate neighbour search comes to the exact one on a set of queries:
+ * the share of the true k nearest neighbours it found, how much farther its neighbours
+ * are, and the average errors and times of both.
+ */
+public final class RecallReport {
+	/** the fraction of the exact k nearest neighbours that were found */
+	public final double recall;
+	/**
+	 * the average over the queries of (sum of the found distances) / (sum of the exact ones):
+	 * 1 when the exact neighbours were found, more when farther ones were. It isn't clamped,
+	 * so it can come out a little below 1 from rounding, or further below when the approximate
+	 * search returned fewer than k neighbours.
+	 */
+	public final double distanceRatio;
+	/** the average absolute errors of both searches (as in Knn.calcAvgError) */
+	public final double approximateError, exactError;
+	/** the time spent in each search, in nanoseconds */
+	public final double approximateTime, exactTime;
+
+	private RecallReport(double recall, double distanceRatio, double approximateError, double exactError,
+			double approximateTime, double exactTime) {
+		this.recall = recall;
+		this.distanceRatio = distanceRatio;
+		this.approximateError = approximateError;
+		this.exactError = exactError;
+		this.approximateTime = approximateTime;
+		this.exactTime = exactTime;
+	}
+
+	/**
+	 * Runs both models over the instances, one query at a time.
+	 * @param approximate
+	 * @param exact a model with the same training rows and k
+	 * @param instances
+	 * @return
+	 */
+	static RecallReport compare(KnnModel approximate, KnnModel exact, Instances instances) {
+		long found = 0, total = 0, approximateTime = 0, exactTime = 0;
+		double ratios = 0, approximateError = 0, exactError = 0;
+		int numRatios = 0;
+		int[] rows = new int[0];
+		for (Instance instance : instances) {
+			long start = System.nanoTime();
+			NeighbourHeap nearest = approximate.findNearestRows(instance);
+			approximateTime += System.nanoTime() - start;
+			approximateError += Math.abs(approximate.predict(nearest) - instance.classValue());
+			//the heap is reused by the exact search, keep the rows
+			int size = nearest.size();
+			double approximateSum = 0;
+			if (rows.length < size) rows = new int[size];
+			for (int i = 0; i < size; i++) {
+				rows[i] = nearest.row(i);
+				approximateSum += nearest.distance(i);
+			}
+			start = System.nanoTime();
+			nearest = exact.findNearestRows(instance);
+			exactTime += System.nanoTime() - start;
+			exactError += Math.abs(exact.predict(nearest) - instance.classValue());
+			double exactSum = 0;
+			for (int i = 0; i < nearest.size(); i++) {
+				exactSum += nearest.distance(i);
+				for (int j = 0; j < size; j++) {
+					if (rows[j] == nearest.row(i)) {
+						found++;
+						break;
+					}
+				}
+			}
+			total += nearest.size();
+			if (exactSum > 0) {
+				ratios += approximateSum / exactSum;
+				numRatios++;
+			}
+		}
+		int n = instances.numInstances();
+		return new RecallReport(total == 0 ? 1.0 : found / (double) total, numRatios == 0 ? 1.0 : ratios / numRatios,
+				approximateError / n, exactError / n, approximateTime, exactTime);
+	}
+
+	@Override
+	public String toString() {
+		return "recall " + recall + ", distance ratio " + distanceRatio
+				+ "\naverage error " + approximateError + " (exact " + exactError + ")"
+				+ "\ntime " + approximateTime + " (exact " + exactTime + ")";
+	}
+}
@@ -0,0 +1,242 @@
+package Knn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An approximate neighbour index: a forest of random projection trees. Every node
+ * projects its rows on a random unit direction and splits them at the median, down
+ * to leaves of at most 'leafSize' rows. A query descends all the trees at once, best
+ * first: a branch not taken waits in a queue keyed by how close the query was to its
+ * splitting plane, and the leaves are opened in that order until 'candidates' rows
+ * were scored (or every leaf was). The candidates are scored with the exact distance,
+ * so what is returned is exact, only some true neighbours may be missed.
+ * More trees and candidates give a better recall for a slower query.
+ */
+class RpForest implements NeighbourIndex {
+	private final FeatureStore store;
+	private final int leafSize, candidates;
+	//the row permutations of all the trees, tree t owns [t * numRows, (t + 1) * numRows)
+	private final int[] rows;
+	private final int[] roots;
+	//nodes of all the trees; a leaf has left == -1 and owns rows [from, to)
+	private int[] from, to, left, right;
+	private double[] split;
+	//unit direction of node n at [n * numFeatures, (n + 1) * numFeatures)
+	private double[] directions;
+	private int numNodes;
+	private final ThreadLocal<Scratch> scratch;
+
+	/**
+	 * Per thread search state: the queue of branches and the rows already scored.
+	 */
+	private static class Scratch {
+		double[] keys = new double[16];
+		int[] nodes = new int[16];
+		int size;
+		//a row was scored for the current query if stamps[row] == stamp
+		final int[] stamps;
+		int stamp;
+
+		Scratch(int numRows) {
+			stamps = new int[numRows];
+		}
+
+		void push(double key, int node) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			}
+			int i = size++;
+			while (i > 0 && keys[(i - 1) >>> 1] > key) {
+				keys[i] = keys[(i - 1) >>> 1];
+				nodes[i] = nodes[(i - 1) >>> 1];
+				i = (i - 1) >>> 1;
+			}
+			keys[i] = key;
+			nodes[i] = node;
+		}
+
+		/**
+		 * Removes the branch with the smallest key and returns its node.
+		 */
+		int pop() {
+			int node = nodes[0];
+			double key = keys[--size];
+			int last = nodes[size], i = 0;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+				if (keys[child] >= key) break;
+				keys[i] = keys[child];
+				nodes[i] = nodes[child];
+				i = child;
+			}
+			keys[i] = key;
+			nodes[i] = last;
+			return node;
+		}
+	}
+
+	/**
+	 * @param store
+	 * @param numTrees
+	 * @param leafSize largest number of rows in a leaf
+	 * @param candidates number of rows scored per query
+	 * @param seed
+	 */
+	RpForest(FeatureStore store, int numTrees, int leafSize, int candidates, long seed) {
+		if (numTrees < 1 || leafSize < 1 || candidates < 1) {
+			throw new IllegalArgumentException("The number of trees, the leaf size and the candidates must be positive");
+		}
+		this.store = store;
+		this.leafSize = leafSize;
+		this.candidates = candidates;
+		int n = store.numRows, capacity = 16;
+		this.rows = new int[numTrees * n];
+		this.roots = new int[numTrees];
+		this.from = new int[capacity];
+		this.to = new int[capacity];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.split = new double[capacity];
+		this.directions = new double[capacity * store.numFeatures];
+		Random random = new Random(seed);
+		double[] projections = new double[n];
+		for (int t = 0; t < numTrees; t++) {
+			for (int i = 0; i < n; i++) {
+				rows[t * n + i] = i;
+			}
+			roots[t] = build(t * n, (t + 1) * n, random, projections);
+		}
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(store.numRows));
+	}
+
+	private int newNode(int from, int to) {
+		if (numNodes == this.from.length) {
+			int capacity = 2 * numNodes;
+			this.from = Arrays.copyOf(this.from, capacity);
+			this.to = Arrays.copyOf(this.to, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			split = Arrays.copyOf(split, capacity);
+			directions = Arrays.copyOf(directions, capacity * store.numFeatures);
+		}
+		this.from[numNodes] = from;
+		this.to[numNodes] = to;
+		left[numNodes] = right[numNodes] = -1;
+		return numNodes++;
+	}
+
+	/**
+	 * Builds the subtree over rows[from, to). 'projections' is scratch indexed like 'rows', less the tree's offset.
+	 */
+	private int build(int from, int to, Random random, double[] projections) {
+		int node = newNode(from, to);
+		if (to - from <= leafSize) return node;
+		int d = store.numFeatures, offset = from - from % store.numRows;
+		double norm = 0;
+		for (int f = 0; f < d; f++) {
+			double value = random.nextGaussian();
+			directions[node * d + f] = value;
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		for (int f = 0; f < d; f++) {
+			directions[node * d + f] /= norm;
+		}
+		for (int i = from; i < to; i++) {
+			projections[i - offset] = project(store.values, rows[i] * d, node);
+		}
+		int middle = (from + to) >>> 1;
+		select(from, to - 1, middle, projections, offset);
+		//rows with the same projection can't be split, keep them in one leaf
+		if (projections[from - offset] == projections[to - 1 - offset] && isConstant(from, to, projections, offset)) return node;
+		split[node] = projections[middle - offset];
+		int l = build(from, middle, random, projections);
+		int r = build(middle, to, random, projections);
+		left[node] = l;
+		right[node] = r;
+		return node;
+	}
+
+	private boolean isConstant(int from, int to, double[] projections, int offset) {
+		for (int i = from + 1; i < to; i++) {
+			if (projections[i - offset] != projections[from - offset]) return false;
+		}
+		return true;
+	}
+
+	private double project(double[] values, int offset, int node) {
+		int d = store.numFeatures;
+		double sum = 0;
+		for (int f = 0; f < d; f++) {
+			sum += values[offset + f] * directions[node * d + f];
+		}
+		return sum;
+	}
+
+	/**
+	 * Quickselect on the projections, keeping 'rows' in step.
+	 */
+	private void select(int from, int to, int k, double[] projections, int offset) {
+		while (from < to) {
+			double pivot = projections[((from + to) >>> 1) - offset];
+			int i = from, j = to;
+			while (i <= j) {
+				while (projections[i - offset] < pivot) i++;
+				while (projections[j - offset] > pivot) j--;
+				if (i <= j) {
+					double projection = projections[i - offset];
+					projections[i - offset] = projections[j - offset];
+					projections[j - offset] = projection;
+					int row = rows[i];
+					rows[i] = rows[j];
+					rows[j] = row;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void search(double[] query, double p, NeighbourHeap nearest, int excludeFrom, int excludeTo) {
+		DistanceKernel kernel = DistanceKernel.forP(p);
+		Scratch state = scratch.get();
+		if (++state.stamp == 0) {
+			Arrays.fill(state.stamps, 0);
+			state.stamp = 1;
+		}
+		state.size = 0;
+		for (int root : roots) {
+			state.push(0, root);
+		}
+		int d = store.numFeatures, scored = 0;
+		while (state.size > 0 && scored < candidates) {
+			double key = state.keys[0];
+			int node = state.pop();
+			//go down to a leaf, queueing the other side of every split
+			while (left[node] >= 0) {
+				double margin = project(query, 0, node) - split[node];
+				int near = margin < 0 ? left[node] : right[node], far = margin < 0 ? right[node] : left[node];
+				state.push(Math.max(key, Math.abs(margin)), far);
+				node = near;
+			}
+			for (int i = from[node]; i < to[node]; i++) {
+				int row = rows[i];
+				if (state.stamps[row] == state.stamp || (row >= excludeFrom && row < excludeTo)) continue;
+				state.stamps[row] = state.stamp;
+				nearest.offer(row, kernel.reduced(query, 0, store.values, row * d, d));
+				scored++;
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package Knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+
+import weka.core.Instance;
+
+import Knn.Knn.weightingScheme;
+
+/**
+ * A Knn regressor over a reference set that changes: rows are added, removed by id,
+ * or expired by timestamp, as in a sliding window of recent observations.
+ * 
+ * The rows live in immutable segments (each with a KD-tree once it's large enough),
+ * merged the way a binary counter carries: a new row is a segment of its own, and the
+ * last two segments are merged while the older one is no larger than the newer one,
+ * so a row is copied O(log n) times over its life. Each merged segment of m rows also
+ * gets its KD-tree built, in O(m log m), so an add costs amortised O(log^2 n) in all.
+ * A removal only stamps the row's segment with the version it was removed at, and a
+ * segment that is more than half removed is rebuilt from its remaining rows; nothing is
+ * ever rebuilt as a whole.
+ * 
+ * Every change publishes a new Snapshot: the list of segments and a version. A row is
+ * visible in a snapshot if it's in one of its segments and wasn't removed at or before
+ * its version, so a reader keeps a consistent view for as long as it holds a snapshot,
+ * whatever the writers do meanwhile. Changes are serialised, queries need no lock.
+ */
+public class SlidingWindowKnn {
+	//segments smaller than this are scanned, larger ones get a KD-tree
+	private static final int TREE_SIZE = 64;
+	//per thread scratch for the queries
+	private static final ThreadLocal<NeighbourHeap> heaps = ThreadLocal.withInitial(NeighbourHeap::new);
+	private static final ThreadLocal<NeighbourHeap> segmentHeaps = ThreadLocal.withInitial(NeighbourHeap::new);
+	private static final ThreadLocal<double[]> targets = ThreadLocal.withInitial(() -> new double[0]);
+	private final int numFeatures, k;
+	private final weightingScheme scheme;
+	private final DistanceKernel kernel;
+	private final AtomicReference<Snapshot> current = new AtomicReference<>();
+	//the writers' state, guarded by 'this'
+	private final List<Segment> segments = new ArrayList<>();
+	private final Map<Integer, Segment> owners = new HashMap<>();
+	//the rows' timestamps, oldest first; rows removed by id leave their entries behind
+	//until expire reaches them or they outnumber the rows, see purgeExpiries
+	private final PriorityQueue<Expiry> expiries = new PriorityQueue<>();
+	private long version;
+	private int nextId;
+
+	/**
+	 * An immutable block of rows, sorted by id.
+	 */
+	private static final class Segment {
+		final FeatureStore store;
+		final int[] ids;
+		final long[] timestamps;
+		//the version each row was removed at, Long.MAX_VALUE while it's in
+		final AtomicLongArray removedAt;
+		final KdTree tree;
+		//rows removed so far, only used by the writers
+		int removed;
+
+		Segment(double[] values, double[] targets, int[] ids, long[] timestamps, int numFeatures) {
+			this.store = new FeatureStore(values, targets, numFeatures);
+			this.ids = ids;
+			this.timestamps = timestamps;
+			this.removedAt = new AtomicLongArray(ids.length);
+			for (int row = 0; row < ids.length; row++) {
+				removedAt.set(row, Long.MAX_VALUE);
+			}
+			this.tree = ids.length >= TREE_SIZE ? new KdTree(store) : null;
+		}
+
+		int live() {
+			return ids.length - removed;
+		}
+	}
+
+	private static final class Expiry implements Comparable<Expiry> {
+		final long timestamp;
+		final int id;
+
+		Expiry(long timestamp, int id) {
+			this.timestamp = timestamp;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(Expiry other) {
+			return Long.compare(timestamp, other.timestamp);
+		}
+	}
+
+	/**
+	 * A consistent view of the reference set, unaffected by later changes.
+	 */
+	public final class Snapshot {
+		private final List<Segment> segments;
+		private final long version;
+		private final int size;
+
+		private Snapshot(List<Segment> segments, long version, int size) {
+			this.segments = segments;
+			this.version = version;
+			this.size = size;
+		}
+
+		/**
+		 * @return the number of rows in the snapshot
+		 */
+		public int size() {
+			return size;
+		}
+
+		public long version() {
+			return version;
+		}
+
+		/**
+		 * Returns the knn prediction on the given instance.
+		 * @param instance
+		 * @return
+		 */
+		public double regressionPrediction(Instance instance) {
+			double[] query = new double[numFeatures];
+			FeatureStore.features(instance, query, 0);
+			return regressionPrediction(query);
+		}
+
+		/**
+		 * Returns the knn prediction for the given features.
+		 * @param query
+		 * @return
+		 * @throws IllegalStateException if the snapshot has no rows
+		 */
+		public double regressionPrediction(double[] query) {
+			if (size == 0) {
+				throw new IllegalStateException("No rows to predict from, the window is empty");
+			}
+			NeighbourHeap nearest = heaps.get(), part = segmentHeaps.get();
+			nearest.reset(k);
+			double[] candidateTargets = targets.get();
+			if (candidateTargets.length < k * segments.size()) {
+				candidateTargets = new double[k * segments.size()];
+				targets.set(candidateTargets);
+			}
+			//every segment's k nearest become candidates, numbered oldest segment first
+			//so that ties still go to the earlier rows
+			int numCandidates = 0;
+			for (Segment segment : segments) {
+				part.reset(Math.min(k, segment.ids.length));
+				IntPredicate visible = row -> segment.removedAt.get(row) > version;
+				if (segment.tree != null) {
+					segment.tree.search(query, kernel, part, visible);
+				} else {
+					for (int row = 0; row < segment.ids.length; row++) {
+						if (visible.test(row)) {
+							part.offer(row, kernel.reduced(query, 0, segment.store.values, row * numFeatures, numFeatures));
+						}
+					}
+				}
+				part.sort();
+				for (int i = 0; i < part.size(); i++) {
+					candidateTargets[numCandidates] = segment.store.targets[part.row(i)];
+					nearest.offer(numCandidates++, part.distance(i));
+				}
+			}
+			nearest.sort();
+			nearest.fromReduced(kernel);
+			if (scheme == weightingScheme.Unweighted) {
+				return KnnModel.getAverageValue(nearest, candidateTargets);
+			} else return KnnModel.getWeightedAverageValue(nearest, candidateTargets);
+		}
+	}
+
+	/**
+	 * @param numFeatures number of features of a row (the instances' attributes but the class)
+	 * @param k
+	 * @param p
+	 * @param scheme
+	 */
+	public SlidingWindowKnn(int numFeatures, int k, double p, weightingScheme scheme) {
+		this.numFeatures = numFeatures;
+		this.k = k;
+		this.scheme = scheme;
+		this.kernel = DistanceKernel.forP(p);
+		publish();
+	}
+
+	/**
+	 * @return the current snapshot, to query any number of times
+	 */
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the knn prediction on the given instance, over the current snapshot.
+	 * @param instance
+	 * @return
+	 */
+	public double regressionPrediction(Instance instance) {
+		return current.get().regressionPrediction(instance);
+	}
+
+	/**
+	 * Adds an instance (its class value being the target).
+	 * @param instance
+	 * @param timestamp used by expire
+	 * @return the id of the new row
+	 */
+	public int add(Instance instance, long timestamp) {
+		double[] features = new double[numFeatures];
+		FeatureStore.features(instance, features, 0);
+		return add(features, instance.classValue(), timestamp);
+	}
+
+	/**
+	 * Adds a row, in amortised O(log^2 n): O(log n) copies, and the KD-tree builds of the
+	 * merged segments.
+	 * @param features
+	 * @param target
+	 * @param timestamp used by expire
+	 * @return the id of the new row
+	 */
+	public synchronized int add(double[] features, double target, long timestamp) {
+		if (features.length != numFeatures) {
+			throw new IllegalArgumentException("Expected " + numFeatures + " features, got " + features.length);
+		}
+		int id = nextId++;
+		Segment segment = new Segment(features.clone(), new double[] {target}, new int[] {id}, new long[] {timestamp}, numFeatures);
+		segments.add(segment);
+		owners.put(id, segment);
+		expiries.add(new Expiry(timestamp, id));
+		version++;
+		while (segments.size() >= 2 && segments.get(segments.size() - 2).live() <= segments.get(segments.size() - 1).live()) {
+			Segment newer = segments.remove(segments.size() - 1), older = segments.remove(segments.size() - 1);
+			segments.add(rebuild(older, newer));
+		}
+		publish();
+		return id;
+	}
+
+	/**
+	 * Removes a row, in O(log n) unless its segment is due to be rebuilt.
+	 * @param id
+	 * @return whether the row was there
+	 */
+	public synchronized boolean remove(int id) {
+		if (!owners.containsKey(id)) return false;
+		version++;
+		markRemoved(id);
+		if (expiries.size() > 2 * owners.size() + TREE_SIZE) {
+			purgeExpiries();
+		}
+		publish();
+		return true;
+	}
+
+	/**
+	 * Removes every row with a timestamp before 'cutoff'.
+	 * @param cutoff
+	 * @return the number of rows removed
+	 */
+	public synchronized int expire(long cutoff) {
+		int count = 0;
+		version++;
+		while (!expiries.isEmpty() && expiries.peek().timestamp < cutoff) {
+			int id = expiries.poll().id;
+			if (owners.containsKey(id)) {
+				markRemoved(id);
+				count++;
+			}
+		}
+		publish();
+		return count;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public synchronized int size() {
+		return owners.size();
+	}
+
+	private void markRemoved(int id) {
+		Segment segment = owners.remove(id);
+		segment.removedAt.set(Arrays.binarySearch(segment.ids, id), version);
+		segment.removed++;
+		if (2 * segment.removed > segment.ids.length) {
+			int position = segments.indexOf(segment);
+			if (segment.live() == 0) {
+				segments.remove(position);
+			} else {
+				segments.set(position, rebuild(segment));
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the expiry queue from the rows still in, dropping the entries of the rows
+	 * removed by id. Called once those are the majority, so it costs amortised O(log n)
+	 * per removal and the queue never holds more than about twice the rows.
+	 */
+	private void purgeExpiries() {
+		List<Expiry> live = new ArrayList<>(owners.size());
+		for (Segment segment : segments) {
+			for (int row = 0; row < segment.ids.length; row++) {
+				if (segment.removedAt.get(row) == Long.MAX_VALUE) {
+					live.add(new Expiry(segment.timestamps[row], segment.ids[row]));
+				}
+			}
+		}
+		expiries.clear();
+		expiries.addAll(live);
+	}
+
+	/**
+	 * A new segment with the rows of the given ones that weren't removed, in order.
+	 */
+	private Segment rebuild(Segment... parts) {
+		int size = 0;
+		for (Segment part : parts) {
+			size += part.live();
+		}
+		double[] values = new double[size * numFeatures], targets = new double[size];
+		int[] ids = new int[size];
+		long[] timestamps = new long[size];
+		int row = 0;
+		for (Segment part : parts) {
+			for (int i = 0; i < part.ids.length; i++) {
+				if (part.removedAt.get(i) != Long.MAX_VALUE) continue;
+				System.arraycopy(part.store.values, i * numFeatures, values, row * numFeatures, numFeatures);
+				targets[row] = part.store.targets[i];
+				ids[row] = part.ids[i];
+				timestamps[row] = part.timestamps[i];
+				row++;
+			}
+		}
+		Segment segment = new Segment(values, targets, ids, timestamps, numFeatures);
+		for (int id : ids) {
+			owners.put(id, segment);
+		}
+		return segment;
+	}
+
+	private void publish() {
+		current.set(new Snapshot(Collections.unmodifiableList(new ArrayList<>(segments)), version, owners.size()));
+	}
+}
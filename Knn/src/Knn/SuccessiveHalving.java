@@ -0,0 +1,148 @@
+package Knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Instances;
+
+import Knn.CrossValidationGrid.Configuration;
+import Knn.Knn.DistanceCheck;
+import Knn.Knn.weightingScheme;
+
+/**
+ * Races the Knn grid of CrossValidationGrid by successive halving. A search serves
+ * every k and scheme of a p at once, so the ps are what's raced: every p is evaluated
+ * on the first few folds, only the best 1 / eta of them (by their best configuration)
+ * go on to the next rung, which has eta times the folds, and so on up to all the folds.
+ * A p is only dropped if it's also clearly behind the leading one: the fold by fold
+ * differences between their best configurations' errors must be above 0 by at least z
+ * standard errors, so a p that's close on average but not consistently worse keeps racing.
+ * The folds already evaluated are kept, so the configurations of the surviving ps end
+ * up with their full cross validation errors, summed in the same order as
+ * CrossValidationGrid's.
+ * This is a heuristic: the best configuration of the whole grid is usually among the
+ * survivors, but nothing proves it, so MainHW3 only races when asked to.
+ */
+class SuccessiveHalving {
+	private final int eta, numRungs;
+	private final double z;
+	//distances computed by the last race, and by the whole grid in its place
+	long distanceComputations, gridComputations;
+
+	/**
+	 * @param eta the folds grow, and the ps shrink, by this factor per rung
+	 * @param numRungs number of rungs, the last one being all the folds
+	 * @param z how many standard errors behind the leader a p must be to be dropped
+	 */
+	SuccessiveHalving(int eta, int numRungs, double z) {
+		if (eta < 2 || numRungs < 1) {
+			throw new IllegalArgumentException("Expected eta >= 2 and at least one rung, got " + eta + " and " + numRungs);
+		}
+		this.eta = eta;
+		this.numRungs = numRungs;
+		this.z = z;
+	}
+
+	/**
+	 * @param instances
+	 * @param numFolds
+	 * @param maxK
+	 * @param ps
+	 * @return the configurations of the ps that survived with their cross validation errors
+	 * (as in CrossValidationGrid.errors), by k, then p, weighted before unweighted
+	 */
+	List<Configuration> race(Instances instances, int numFolds, int maxK, double[] ps) {
+		int numSchemes = weightingScheme.values().length, numRows = instances.numInstances();
+		double[][][] errors = new double[ps.length][maxK][numSchemes];
+		//each fold's errors, to compare the ps fold by fold
+		double[][][][] byFold = new double[ps.length][numFolds][maxK][numSchemes];
+		boolean[] racing = new boolean[ps.length];
+		Arrays.fill(racing, true);
+		KnnModel[] models = new KnnModel[ps.length];
+		double[][] foldErrors = new double[maxK][numSchemes];
+		distanceComputations = 0;
+		gridComputations = 0;
+		for (int fold = 0; fold < numFolds; fold++) {
+			int size = Knn.foldStart(numRows, numFolds, fold + 1) - Knn.foldStart(numRows, numFolds, fold);
+			gridComputations += (long) ps.length * size * (numRows - size);
+		}
+		int folds = 0;
+		for (int rung = numRungs - 1; rung >= 0; rung--) {
+			//numFolds / eta^rung folds, rounded up
+			int rungFolds = numFolds;
+			for (int i = 0; i < rung; i++) {
+				rungFolds = (rungFolds + eta - 1) / eta;
+			}
+			if (rungFolds <= folds) continue;
+			for (int i = 0; i < ps.length; i++) {
+				if (!racing[i]) continue;
+				if (models[i] == null) {
+					models[i] = new Knn(instances, maxK, ps[i], weightingScheme.Unweighted, DistanceCheck.Regular).getModel();
+				}
+				for (int fold = folds; fold < rungFolds; fold++) {
+					int first = Knn.foldStart(numRows, numFolds, fold), end = Knn.foldStart(numRows, numFolds, fold + 1);
+					CrossValidationGrid.foldErrors(models[i], first, end, maxK, foldErrors);
+					for (int k = 0; k < maxK; k++) {
+						for (int s = 0; s < numSchemes; s++) {
+							byFold[i][fold][k][s] = foldErrors[k][s] / (end - first);
+							errors[i][k][s] += byFold[i][fold][k][s];
+						}
+					}
+					distanceComputations += (long) (end - first) * (numRows - (end - first));
+				}
+			}
+			folds = rungFolds;
+			if (folds < numFolds) {
+				drop(errors, byFold, folds, racing);
+			}
+		}
+		List<Configuration> survivors = new ArrayList<>();
+		for (int k = 0; k < maxK; k++) {
+			for (int i = 0; i < ps.length; i++) {
+				if (!racing[i]) continue;
+				for (weightingScheme scheme : new weightingScheme[] {weightingScheme.Weighted, weightingScheme.Unweighted}) {
+					survivors.add(new Configuration(k + 1, ps[i], scheme, errors[i][k][scheme.ordinal()] / numFolds));
+				}
+			}
+		}
+		return survivors;
+	}
+
+	/**
+	 * Drops the ps outside the best 1 / eta of those still racing (all evaluated on the
+	 * same folds, so their sums compare) which are clearly behind the leader.
+	 */
+	private void drop(double[][][] errors, double[][][][] byFold, int folds, boolean[] racing) {
+		List<Integer> ps = new ArrayList<>();
+		//each p's best configuration so far, as k - 1 and scheme
+		int[][] best = new int[errors.length][2];
+		for (int i = 0; i < errors.length; i++) {
+			if (!racing[i]) continue;
+			ps.add(i);
+			for (int k = 0; k < errors[i].length; k++) {
+				for (int s = 0; s < errors[i][k].length; s++) {
+					if (errors[i][k][s] < errors[i][best[i][0]][best[i][1]]) best[i] = new int[] {k, s};
+				}
+			}
+		}
+		ps.sort((a, b) -> Double.compare(errors[a][best[a][0]][best[a][1]], errors[b][best[b][0]][best[b][1]]));
+		int leader = ps.get(0);
+		for (int i : ps.subList((ps.size() + eta - 1) / eta, ps.size())) {
+			if (folds < 2) break;
+			double mean = 0.0, squares = 0.0;
+			for (int fold = 0; fold < folds; fold++) {
+				mean += byFold[i][fold][best[i][0]][best[i][1]] - byFold[leader][fold][best[leader][0]][best[leader][1]];
+			}
+			mean /= folds;
+			for (int fold = 0; fold < folds; fold++) {
+				double difference = byFold[i][fold][best[i][0]][best[i][1]] - byFold[leader][fold][best[leader][0]][best[leader][1]];
+				squares += (difference - mean) * (difference - mean);
+			}
+			double standardError = Math.sqrt(squares / (folds - 1) / folds);
+			if (mean - z * standardError > 0) {
+				racing[i] = false;
+			}
+		}
+	}
+}
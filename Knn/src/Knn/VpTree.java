@@ -0,0 +1,165 @@
+package Knn;
+
+import java.util.Random;
+
+/**
+ * A vantage-point tree over the rows of a FeatureStore for exact k nearest neighbour
+ * queries under any Lp metric (p >= 1, or L infinity). Every node picks a vantage row
+ * and splits the others at the median distance 'mu' from it: the inside rows are at
+ * most 'mu' away, the outside ones at least 'mu'. By the triangle inequality, a query
+ * at distance d from the vantage row is at least d - mu from every inside row and
+ * mu - d from every outside row, so a side is skipped when that bound is already
+ * larger than the current k-th nearest distance. Unlike the KD-tree's axis bounds this
+ * doesn't get weaker for large p or many features. The tree is built for one p.
+ */
+class VpTree implements NeighbourIndex {
+	private static final int LEAF_SIZE = 8;
+	private final FeatureStore store;
+	private final double p;
+	private final DistanceKernel kernel;
+	//row indices, every node owns a contiguous range of it
+	private final int[] rows;
+	//scratch distances used while building, parallel to 'rows'
+	private final double[] distances;
+	private final Random random = new Random(0);
+	private final Node root;
+
+	private static class Node {
+		final int from, to;
+		//the vantage row is rows[from], the inside rows are [from + 1, split) and the outside ones [split, to)
+		int split;
+		double mu;
+		Node inside, outside;
+
+		Node(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * @param store
+	 * @param p the metric the tree is built for, must be at least 1
+	 */
+	VpTree(FeatureStore store, double p) {
+		if (p < 1) {
+			throw new IllegalArgumentException("A vantage-point tree needs a metric, p must be at least 1: " + p);
+		}
+		this.store = store;
+		this.p = p;
+		this.kernel = DistanceKernel.forP(p);
+		this.rows = new int[store.numRows];
+		this.distances = new double[store.numRows];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+		this.root = build(0, rows.length);
+	}
+
+	private Node build(int from, int to) {
+		Node node = new Node(from, to);
+		if (to - from <= LEAF_SIZE) return node;
+		//random vantage row, moved to the front of the range
+		swap(from, from + random.nextInt(to - from));
+		int d = store.numFeatures, vantage = rows[from];
+		for (int i = from + 1; i < to; i++) {
+			distances[i] = distance(store.values, vantage * d, rows[i]);
+		}
+		int middle = (from + 1 + to) >>> 1;
+		select(from + 1, to - 1, middle);
+		node.split = middle;
+		node.mu = distances[middle];
+		node.inside = build(from + 1, middle);
+		node.outside = build(middle, to);
+		return node;
+	}
+
+	private double distance(double[] query, int offset, int row) {
+		return kernel.distance(reducedDistance(query, offset, row));
+	}
+
+	private double reducedDistance(double[] query, int offset, int row) {
+		int d = store.numFeatures;
+		return kernel.reduced(query, offset, store.values, row * d, d);
+	}
+
+	private void swap(int i, int j) {
+		int row = rows[i];
+		rows[i] = rows[j];
+		rows[j] = row;
+		double distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+
+	/**
+	 * Quickselect on the scratch distances, keeping 'rows' in step.
+	 */
+	private void select(int from, int to, int k) {
+		while (from < to) {
+			double pivot = distances[(from + to) >>> 1];
+			int i = from, j = to;
+			while (i <= j) {
+				while (distances[i] < pivot) i++;
+				while (distances[j] > pivot) j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if 'p' isn't the one the tree was built for
+	 */
+	@Override
+	public void search(double[] query, double p, NeighbourHeap nearest, int excludeFrom, int excludeTo) {
+		if (p != this.p) {
+			throw new IllegalArgumentException("The tree was built for p = " + this.p + ", not " + p);
+		}
+		search(root, query, nearest, excludeFrom, excludeTo);
+	}
+
+	private void search(Node node, double[] query, NeighbourHeap nearest, int excludeFrom, int excludeTo) {
+		if (node.inside == null) {
+			for (int i = node.from; i < node.to; i++) {
+				if (rows[i] < excludeFrom || rows[i] >= excludeTo) {
+					nearest.offer(rows[i], reducedDistance(query, 0, rows[i]));
+				}
+			}
+			return;
+		}
+		double reduced = reducedDistance(query, 0, rows[node.from]);
+		if (rows[node.from] < excludeFrom || rows[node.from] >= excludeTo) {
+			nearest.offer(rows[node.from], reduced);
+		}
+		double d = kernel.distance(reduced);
+		if (d < node.mu) {
+			search(node.inside, query, nearest, excludeFrom, excludeTo);
+			if (node.mu - d <= radius(nearest)) {
+				search(node.outside, query, nearest, excludeFrom, excludeTo);
+			}
+		} else {
+			search(node.outside, query, nearest, excludeFrom, excludeTo);
+			if (d - node.mu <= radius(nearest)) {
+				search(node.inside, query, nearest, excludeFrom, excludeTo);
+			}
+		}
+	}
+
+	/**
+	 * The current k-th nearest distance, infinite until k neighbours were found.
+	 */
+	private double radius(NeighbourHeap nearest) {
+		return kernel.distance(nearest.worstDistance());
+	}
+}
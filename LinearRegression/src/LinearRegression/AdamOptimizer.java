@@ -0,0 +1,59 @@
+package LinearRegression;
+
+/**
+ * Adam (Kingma and Ba, 2014): every coefficient gets its own step size from running
+ * averages of its gradient and squared gradient, which makes it insensitive to the
+ * scale of the attributes (e.g. 'year' next to the wind speeds).
+ */
+public class AdamOptimizer implements Optimizer {
+	private final double m_alpha;
+	private final double m_beta1;
+	private final double m_beta2;
+	private final double m_epsilon;
+	private double[] m_firstMoment;
+	private double[] m_secondMoment;
+	private double[] m_gradient;
+	private double m_beta1Power;
+	private double m_beta2Power;
+
+	/**
+	 * Adam with the usual defaults beta1 = 0.9, beta2 = 0.999, epsilon = 1e-8.
+	 * @param alpha the learning rate
+	 */
+	public AdamOptimizer(double alpha) {
+		this(alpha, 0.9, 0.999, 1e-8);
+	}
+
+	public AdamOptimizer(double alpha, double beta1, double beta2, double epsilon) {
+		m_alpha = alpha;
+		m_beta1 = beta1;
+		m_beta2 = beta2;
+		m_epsilon = epsilon;
+	}
+
+	@Override
+	public void reset(int numCoefficients) {
+		m_firstMoment = new double[numCoefficients];
+		m_secondMoment = new double[numCoefficients];
+		m_gradient = new double[numCoefficients];
+		m_beta1Power = 1;
+		m_beta2Power = 1;
+	}
+
+	@Override
+	public double step(Objective objective, double[] coefficients) {
+		double cost = objective.gradient(coefficients, m_gradient);
+		m_beta1Power *= m_beta1;
+		m_beta2Power *= m_beta2;
+		for (int i = 0; i < coefficients.length; i++) {
+			double g = m_gradient[i];
+			m_firstMoment[i] = m_beta1 * m_firstMoment[i] + (1 - m_beta1) * g;
+			m_secondMoment[i] = m_beta2 * m_secondMoment[i] + (1 - m_beta2) * g * g;
+			//bias corrected moments
+			double m = m_firstMoment[i] / (1 - m_beta1Power);
+			double v = m_secondMoment[i] / (1 - m_beta2Power);
+			coefficients[i] -= m_alpha * m / (Math.sqrt(v) + m_epsilon);
+		}
+		return cost;
+	}
+}
@@ -0,0 +1,58 @@
+package LinearRegression;
+
+/**
+ * Gradient descent with an Armijo backtracking line search: the step shrinks until
+ * cost(teta - t * gradient) <= cost(teta) - c * t * |gradient|^2, so no learning
+ * rate has to be searched for up front. Every accepted step is tried slightly larger
+ * on the next iteration, which keeps the number of extra cost evaluations low.
+ */
+public class BacktrackingLineSearch implements Optimizer {
+	private static final double SUFFICIENT_DECREASE = 1e-4;
+	private static final double SHRINK = 0.5;
+	private static final double GROW = 2.0;
+	private final double m_initialStep;
+	private double m_step;
+	private double[] m_gradient;
+	private double[] m_candidate;
+
+	public BacktrackingLineSearch() {
+		this(1.0);
+	}
+
+	/**
+	 * @param initialStep the first step tried
+	 */
+	public BacktrackingLineSearch(double initialStep) {
+		m_initialStep = initialStep;
+	}
+
+	@Override
+	public void reset(int numCoefficients) {
+		m_step = m_initialStep;
+		m_gradient = new double[numCoefficients];
+		m_candidate = new double[numCoefficients];
+	}
+
+	@Override
+	public double step(Objective objective, double[] coefficients) {
+		double cost = objective.gradient(coefficients, m_gradient);
+		double gradientNorm = 0;
+		for (int i = 0; i < coefficients.length; i++) {
+			gradientNorm += m_gradient[i] * m_gradient[i];
+		}
+		if (gradientNorm == 0) return cost;
+		double t = m_step * GROW;
+		while (true) {
+			for (int i = 0; i < coefficients.length; i++) {
+				m_candidate[i] = coefficients[i] - t * m_gradient[i];
+			}
+			if (objective.cost(m_candidate) <= cost - SUFFICIENT_DECREASE * t * gradientNorm) break;
+			t *= SHRINK;
+			//the step underflowed, no representable decrease is left in this direction
+			if (t == 0) return cost;
+		}
+		m_step = t;
+		System.arraycopy(m_candidate, 0, coefficients, 0, coefficients.length);
+		return cost;
+	}
+}
@@ -0,0 +1,234 @@
+package LinearRegression;
+
+import weka.core.Instances;
+
+/**
+ * Finds the best subset of k attributes (smallest training error) for any k without
+ * evaluating every combination, with a branch and bound in the spirit of
+ * Furnival and Wilson's leaps and bounds.
+ * 
+ * The search starts from the full model and drops one attribute at a time. Dropping
+ * attributes can only increase the residual sum of squares, so once a partial model
+ * is already worse than the best k-subset found so far, nothing below it needs to be
+ * visited. Models are kept as the augmented X^T * X matrix swept (Gauss-Jordan
+ * pivoted) on the attributes in use: adding or dropping an attribute is a single
+ * O(attributes^2) sweep, and the error increase of a drop is known before doing it.
+ * 
+ * As in MainHW1.loadData, the class is the last attribute. Attributes which are linear
+ * combinations of the others are never pivoted in, so they count as dropped for free.
+ */
+public class BestSubsetSearch {
+	//pivots smaller than this (relative to the diagonal of X^T * X) are treated as collinear
+	private static final double COLLINEAR_TOLERANCE = 1e-10;
+	private final GramMatrix m_gram;
+	private final int m_numFeatures;
+	//row/column of the targets in the augmented matrix, 0 is the intercept and 1..m_numFeatures the attributes
+	private final int m_target;
+	private double[][] m_matrix;
+	private boolean[] m_swept;
+	private int[] m_dropped;
+	private int m_size;
+	private double m_bestRss;
+	private int[] m_bestDropped;
+	private long m_subsetsVisited;
+
+	/**
+	 * @param training
+	 */
+	public BestSubsetSearch(Instances training) {
+		m_gram = GramMatrix.of(training, training.classIndex(), training.numAttributes() - 1);
+		m_numFeatures = m_gram.numFeatures;
+		m_target = m_numFeatures + 1;
+	}
+
+	/**
+	 * @param maxSize
+	 * @return the best subset of every size 1..maxSize, results[k - 1] holds size k
+	 */
+	public SubsetResult[] bestForEachSize(int maxSize) {
+		SubsetResult[] results = new SubsetResult[maxSize];
+		for (int k = 1; k <= maxSize; k++) {
+			results[k - 1] = best(k);
+		}
+		return results;
+	}
+
+	/**
+	 * @param size
+	 * @return the subset of the given size with the smallest training error
+	 */
+	public SubsetResult best(int size) {
+		if (size < 1 || size > m_numFeatures) {
+			throw new IllegalArgumentException("subset size must be between 1 and " + m_numFeatures + ": " + size);
+		}
+		m_size = size;
+		m_subsetsVisited = 0;
+		sweepFullModel();
+		int toDrop = m_numFeatures - size;
+		m_dropped = new int[toDrop];
+		//the greedy subset is the first bound, then the exact search tightens it
+		m_bestDropped = greedyDrop(toDrop);
+		m_bestRss = m_matrix[m_target][m_target];
+		sweepFullModel();
+		branch(0, 0, m_matrix[m_target][m_target]);
+
+		int[] attributes = new int[size];
+		for (int j = 0, i = 0, d = 0; j < m_numFeatures; j++) {
+			if (d < toDrop && m_bestDropped[d] == j) {
+				d++;
+			} else {
+				attributes[i++] = j;
+			}
+		}
+		//final coefficients and error straight from X^T * X, without the rounding of the sweeps
+		int[] columns = new int[size + 1];
+		for (int i = 0; i < size; i++) {
+			columns[i + 1] = attributes[i] + 1;
+		}
+		double[] coefficients = m_gram.solve(columns);
+		double mse = coefficients == null ? m_bestRss / ((double) m_gram.count * 2.0) : m_gram.cost(columns, coefficients);
+		return new SubsetResult(attributes, coefficients, mse);
+	}
+
+	/**
+	 * @return the number of partial and complete models visited by the last search
+	 */
+	public long getSubsetsVisited() {
+		return m_subsetsVisited;
+	}
+
+	/**
+	 * Visits the models obtained by dropping, in increasing index order, more attributes
+	 * starting from 'from', with 'depth' attributes dropped so far.
+	 */
+	private void branch(int depth, int from, double rss) {
+		m_subsetsVisited++;
+		if (depth == m_dropped.length) {
+			if (rss < m_bestRss) {
+				m_bestRss = rss;
+				m_bestDropped = m_dropped.clone();
+			}
+			return;
+		}
+		int remaining = m_dropped.length - depth;
+		for (int j = from; j <= m_numFeatures - remaining; j++) {
+			int k = j + 1;
+			double childRss = rss + increase(k);
+			//bound: every model below the child is at least as bad as the child
+			if (childRss >= m_bestRss) continue;
+			m_dropped[depth] = j;
+			if (m_swept[k]) {
+				unsweep(k);
+				m_swept[k] = false;
+				branch(depth + 1, j + 1, m_matrix[m_target][m_target]);
+				sweep(k);
+				m_swept[k] = true;
+			} else {
+				branch(depth + 1, j + 1, rss);
+			}
+		}
+	}
+
+	/**
+	 * Backward elimination: repeatedly drops the attribute which increases the error the least.
+	 * Leaves the working matrix on the greedy model.
+	 * @return the dropped attributes in increasing order
+	 */
+	private int[] greedyDrop(int toDrop) {
+		boolean[] dropped = new boolean[m_numFeatures + 1];
+		for (int n = 0; n < toDrop; n++) {
+			int best = -1;
+			double bestIncrease = Double.POSITIVE_INFINITY;
+			for (int k = 1; k <= m_numFeatures; k++) {
+				if (!dropped[k] && increase(k) < bestIncrease) {
+					bestIncrease = increase(k);
+					best = k;
+				}
+			}
+			dropped[best] = true;
+			if (m_swept[best]) {
+				unsweep(best);
+				m_swept[best] = false;
+			}
+		}
+		int[] result = new int[toDrop];
+		for (int k = 1, i = 0; k <= m_numFeatures; k++) {
+			if (dropped[k]) result[i++] = k - 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Increase of the residual sum of squares when column k is dropped from the current model.
+	 */
+	private double increase(int k) {
+		if (!m_swept[k]) return 0;
+		double beta = m_matrix[k][m_target];
+		return beta * beta / -m_matrix[k][k];
+	}
+
+	/**
+	 * Resets the working matrix to the augmented [X y]^T * [X y] and pivots in the
+	 * intercept and every attribute which isn't collinear with the previous ones.
+	 */
+	private void sweepFullModel() {
+		int n = m_numFeatures + 2;
+		m_matrix = new double[n][n];
+		for (int i = 0; i <= m_numFeatures; i++) {
+			System.arraycopy(m_gram.xtx[i], 0, m_matrix[i], 0, m_numFeatures + 1);
+			m_matrix[i][m_target] = m_gram.xty[i];
+			m_matrix[m_target][i] = m_gram.xty[i];
+		}
+		m_matrix[m_target][m_target] = m_gram.yty;
+		m_swept = new boolean[m_numFeatures + 1];
+		for (int k = 0; k <= m_numFeatures; k++) {
+			if (m_matrix[k][k] > COLLINEAR_TOLERANCE * m_gram.xtx[k][k]) {
+				sweep(k);
+				m_swept[k] = true;
+			}
+		}
+	}
+
+	/**
+	 * Pivots column k into the model.
+	 */
+	private void sweep(int k) {
+		double pivot = m_matrix[k][k];
+		eliminate(k, pivot);
+		for (int i = 0; i < m_matrix.length; i++) {
+			if (i == k) continue;
+			m_matrix[i][k] /= pivot;
+			m_matrix[k][i] /= pivot;
+		}
+		m_matrix[k][k] = -1.0 / pivot;
+	}
+
+	/**
+	 * Pivots column k out of the model, the exact inverse of 'sweep'.
+	 */
+	private void unsweep(int k) {
+		double pivot = m_matrix[k][k];
+		eliminate(k, pivot);
+		for (int i = 0; i < m_matrix.length; i++) {
+			if (i == k) continue;
+			m_matrix[i][k] /= -pivot;
+			m_matrix[k][i] /= -pivot;
+		}
+		m_matrix[k][k] = -1.0 / pivot;
+	}
+
+	private void eliminate(int k, double pivot) {
+		double[] pivotRow = m_matrix[k];
+		for (int i = 0; i < m_matrix.length; i++) {
+			if (i == k) continue;
+			double factor = m_matrix[i][k] / pivot;
+			if (factor == 0) continue;
+			double[] row = m_matrix[i];
+			for (int j = 0; j < row.length; j++) {
+				if (j != k) {
+					row[j] -= factor * pivotRow[j];
+				}
+			}
+		}
+	}
+}
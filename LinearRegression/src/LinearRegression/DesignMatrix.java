@@ -0,0 +1,147 @@
+package LinearRegression;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A primitive copy of the training data, cached once per build so the
+ * gradient based trainers don't go through Instance.value calls on every step.
+ * Rows are stored contiguously (row-major) so each pass over the data
+ * reads memory sequentially.
+ */
+class DesignMatrix {
+	final int numRows;
+	final int numFeatures;
+	//the features of row r are stored at [r * numFeatures, (r + 1) * numFeatures)
+	final double[] features;
+	final double[] targets;
+
+	/**
+	 * Copies the first 'numFeatures' attributes of every instance together
+	 * with its class value.
+	 * @param data
+	 * @param classIndex
+	 * @param numFeatures
+	 */
+	DesignMatrix(Instances data, int classIndex, int numFeatures) {
+		this.numRows = data.numInstances();
+		this.numFeatures = numFeatures;
+		this.features = new double[numRows * numFeatures];
+		this.targets = new double[numRows];
+		for (int r = 0; r < numRows; r++) {
+			Instance instance = data.instance(r);
+			int offset = r * numFeatures;
+			for (int j = 0; j < numFeatures; j++) {
+				features[offset + j] = instance.value(j);
+			}
+			targets[r] = instance.value(classIndex);
+		}
+	}
+
+	/**
+	 * First pass: fills 'residuals' with (prediction - target) for every row.
+	 * @param coefficients
+	 * @param residuals
+	 * @return the cost (sum of squared residuals divided by 2m) of the given coefficients
+	 */
+	double residuals(double[] coefficients, double[] residuals) {
+		double cost = 0;
+		for (int r = 0, offset = 0; r < numRows; r++, offset += numFeatures) {
+			double prediction = coefficients[0];
+			for (int j = 0; j < numFeatures; j++) {
+				prediction += coefficients[j + 1] * features[offset + j];
+			}
+			double residual = prediction - targets[r];
+			residuals[r] = residual;
+			cost += residual * residual;
+		}
+		return cost / ((double) numRows * 2.0);
+	}
+
+	/**
+	 * Second pass: accumulates the whole gradient vector of the cost from the
+	 * residuals of the first pass. gradient[0] belongs to the intercept.
+	 * @param residuals
+	 * @param gradient
+	 */
+	void gradient(double[] residuals, double[] gradient) {
+		for (int i = 0; i <= numFeatures; i++) {
+			gradient[i] = 0;
+		}
+		for (int r = 0, offset = 0; r < numRows; r++, offset += numFeatures) {
+			double residual = residuals[r];
+			gradient[0] += residual;
+			for (int j = 0; j < numFeatures; j++) {
+				gradient[j + 1] += residual * features[offset + j];
+			}
+		}
+		for (int i = 0; i <= numFeatures; i++) {
+			gradient[i] /= (double) numRows;
+		}
+	}
+
+	/**
+	 * One gradient descent step with learning rate 'alpha', updating all the
+	 * coefficients at once. 'residuals' and 'gradient' are caller owned scratch
+	 * buffers, so concurrent callers only need their own buffers.
+	 * @param coefficients
+	 * @param alpha
+	 * @param residuals
+	 * @param gradient
+	 */
+	void descend(double[] coefficients, double alpha, double[] residuals, double[] gradient) {
+		residuals(coefficients, residuals);
+		gradient(residuals, gradient);
+		for (int i = 0; i <= numFeatures; i++) {
+			coefficients[i] -= alpha * gradient[i];
+		}
+	}
+
+	/**
+	 * Same cost as LinearRegression.calculateMSE, over the cached rows.
+	 * @param coefficients
+	 * @return
+	 */
+	double mse(double[] coefficients) {
+		double cost = 0;
+		for (int r = 0, offset = 0; r < numRows; r++, offset += numFeatures) {
+			double prediction = coefficients[0];
+			for (int j = 0; j < numFeatures; j++) {
+				prediction += coefficients[j + 1] * features[offset + j];
+			}
+			double residual = prediction - targets[r];
+			cost += residual * residual;
+		}
+		return cost / ((double) numRows * 2.0);
+	}
+
+	/**
+	 * @return an Objective over the cached rows with its own residual buffer
+	 */
+	CountingObjective objective() {
+		return new CountingObjective();
+	}
+
+	/**
+	 * Objective over the cached rows which also counts its passes over the data
+	 * (one per cost evaluation, two per gradient).
+	 */
+	class CountingObjective implements Objective {
+		private final double[] residuals = new double[numRows];
+		long passes;
+
+		@Override
+		public double cost(double[] coefficients) {
+			passes++;
+			return mse(coefficients);
+		}
+
+		@Override
+		public double gradient(double[] coefficients, double[] gradient) {
+			passes += 2;
+			double cost = residuals(coefficients, residuals);
+			DesignMatrix.this.gradient(residuals, gradient);
+			return cost;
+		}
+	}
+}
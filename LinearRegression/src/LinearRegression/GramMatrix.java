@@ -0,0 +1,161 @@
+package LinearRegression;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Sufficient statistics of a least squares problem: X^T * X, X^T * y and y^T * y,
+ * where X has a leading column of ones for the intercept (index 0).
+ * Rows are added one at a time, so the statistics can be built in a single
+ * streaming pass without keeping the data itself. Only the upper triangle of X^T * X is
+ * accumulated; the factories mirror it once they're done, after which the matrix is only
+ * read, so concurrent solves and costs are safe.
+ * 
+ * The costs come from the expanded form y^T * y - 2 * teta^T * X^T * y + teta^T * X^T * X * teta,
+ * which cancels: its absolute error is around 1e-16 * y^T * y, so a residual that small
+ * compared with the targets' sum of squares is only known to be about 0.
+ */
+class GramMatrix {
+	final int numFeatures;
+	final double[][] xtx;
+	final double[] xty;
+	double yty;
+	int count;
+
+	GramMatrix(int numFeatures) {
+		this.numFeatures = numFeatures;
+		this.xtx = new double[numFeatures + 1][numFeatures + 1];
+		this.xty = new double[numFeatures + 1];
+	}
+
+	/**
+	 * Builds the statistics of the first 'numFeatures' attributes in one pass over the data.
+	 * @param data
+	 * @param classIndex
+	 * @param numFeatures
+	 * @return
+	 */
+	static GramMatrix of(Instances data, int classIndex, int numFeatures) {
+		GramMatrix gram = new GramMatrix(numFeatures);
+		double[] row = new double[numFeatures];
+		for (Instance instance : data) {
+			for (int j = 0; j < numFeatures; j++) {
+				row[j] = instance.value(j);
+			}
+			gram.add(row, 0, instance.value(classIndex));
+		}
+		gram.mirror();
+		return gram;
+	}
+
+	/**
+	 * Builds the statistics of an already cached design matrix.
+	 * @param data
+	 * @return
+	 */
+	static GramMatrix of(DesignMatrix data) {
+		GramMatrix gram = new GramMatrix(data.numFeatures);
+		for (int r = 0, offset = 0; r < data.numRows; r++, offset += data.numFeatures) {
+			gram.add(data.features, offset, data.targets[r]);
+		}
+		gram.mirror();
+		return gram;
+	}
+
+	/**
+	 * Rank one update with a single row, O(numFeatures^2).
+	 * @param features
+	 * @param offset index of the row's first feature in 'features'
+	 * @param target
+	 */
+	void add(double[] features, int offset, double target) {
+		//intercept row and column
+		xtx[0][0] += 1;
+		xty[0] += target;
+		for (int j = 0; j < numFeatures; j++) {
+			double xj = features[offset + j];
+			xtx[0][j + 1] += xj;
+			xty[j + 1] += xj * target;
+			for (int k = j; k < numFeatures; k++) {
+				xtx[j + 1][k + 1] += xj * features[offset + k];
+			}
+		}
+		yty += target * target;
+		count++;
+		//only the upper triangle is accumulated, 'mirror' fills the rest once all rows are in
+	}
+
+	/**
+	 * Copies the upper triangle of X^T * X into the lower one.
+	 */
+	private void mirror() {
+		for (int i = 0; i <= numFeatures; i++) {
+			for (int j = 0; j < i; j++) {
+				xtx[i][j] = xtx[j][i];
+			}
+		}
+	}
+
+	/**
+	 * Solves the normal equations (X^T * X) * teta = X^T * y.
+	 * @return the coefficients (intercept first), or null if the system is ill-conditioned
+	 */
+	double[] solve() {
+		return LeastSquares.cholesky(xtx, xty);
+	}
+
+	/**
+	 * The cost of the given coefficients over the accumulated rows, the same value
+	 * LinearRegression.calculateMSE returns on the data itself.
+	 * @param coefficients
+	 * @return
+	 */
+	double cost(double[] coefficients) {
+		double sum = yty;
+		for (int i = 0; i <= numFeatures; i++) {
+			double row = 0;
+			for (int j = 0; j <= numFeatures; j++) {
+				row += xtx[i][j] * coefficients[j];
+			}
+			sum += coefficients[i] * (row - 2.0 * xty[i]);
+		}
+		return Math.max(sum, 0.0) / ((double) count * 2.0);
+	}
+
+	/**
+	 * Solves the normal equations restricted to the given columns (0 is the intercept).
+	 * Reads the matrix only, so concurrent calls are safe.
+	 * @param columns
+	 * @return the coefficients in the order of 'columns', or null if the sub-system is ill-conditioned
+	 */
+	double[] solve(int[] columns) {
+		int n = columns.length;
+		double[][] a = new double[n][n];
+		double[] b = new double[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				a[i][j] = xtx[columns[i]][columns[j]];
+			}
+			b[i] = xty[columns[i]];
+		}
+		return LeastSquares.cholesky(a, b);
+	}
+
+	/**
+	 * The cost of a model using only the given columns, see 'cost'.
+	 * @param columns
+	 * @param coefficients in the order of 'columns'
+	 * @return
+	 */
+	double cost(int[] columns, double[] coefficients) {
+		double sum = yty;
+		for (int i = 0; i < columns.length; i++) {
+			double row = 0;
+			for (int j = 0; j < columns.length; j++) {
+				row += xtx[columns[i]][columns[j]] * coefficients[j];
+			}
+			sum += coefficients[i] * (row - 2.0 * xty[columns[i]]);
+		}
+		return Math.max(sum, 0.0) / ((double) count * 2.0);
+	}
+}
@@ -0,0 +1,175 @@
+package LinearRegression;
+
+/**
+ * Direct least squares solvers used by the closed-form modes of LinearRegression.
+ * Both solvers return null when the system is too ill-conditioned to be trusted,
+ * so the caller can fall back to gradient descent.
+ */
+class LeastSquares {
+	//smallest pivot (relative to the equilibrated diagonal) accepted by the Cholesky factorization
+	static final double CHOLESKY_TOLERANCE = 1e-12;
+	//smallest |R(j,j)| (relative to the largest one) accepted by the QR factorization
+	static final double QR_TOLERANCE = 1e-8;
+
+	/**
+	 * Solves the symmetric positive definite system a * x = b with a Cholesky factorization.
+	 * The system is equilibrated first (scaled to a unit diagonal) so the pivot
+	 * check doesn't depend on the units of the attributes. 'a' and 'b' are not modified.
+	 * @param a
+	 * @param b
+	 * @return the solution, or null if a is singular or ill-conditioned
+	 */
+	static double[] cholesky(double[][] a, double[] b) {
+		CholeskyFactor factor = factor(a);
+		return factor == null ? null : factor.solve(b);
+	}
+
+	/**
+	 * Factors the equilibrated matrix once, so systems with many right hand sides
+	 * (e.g. one per target) only pay for the substitutions.
+	 * @param a
+	 * @return the factor, or null if a is singular or ill-conditioned
+	 */
+	static CholeskyFactor factor(double[][] a) {
+		int n = a.length;
+		double[] scale = new double[n];
+		for (int i = 0; i < n; i++) {
+			if (!(a[i][i] > 0)) return null;
+			scale[i] = 1.0 / Math.sqrt(a[i][i]);
+		}
+		//lower triangular factor of the scaled matrix
+		double[][] l = new double[n][n];
+		for (int j = 0; j < n; j++) {
+			double pivot = a[j][j] * scale[j] * scale[j];
+			for (int k = 0; k < j; k++) {
+				pivot -= l[j][k] * l[j][k];
+			}
+			if (!(pivot > CHOLESKY_TOLERANCE)) return null;
+			l[j][j] = Math.sqrt(pivot);
+			for (int i = j + 1; i < n; i++) {
+				double sum = a[i][j] * scale[i] * scale[j];
+				for (int k = 0; k < j; k++) {
+					sum -= l[i][k] * l[j][k];
+				}
+				l[i][j] = sum / l[j][j];
+			}
+		}
+		return new CholeskyFactor(l, scale);
+	}
+
+	/**
+	 * L * L^T = S * a * S, where S scales a to a unit diagonal.
+	 */
+	static class CholeskyFactor {
+		private final double[][] l;
+		private final double[] scale;
+
+		CholeskyFactor(double[][] l, double[] scale) {
+			this.l = l;
+			this.scale = scale;
+		}
+
+		/**
+		 * @param b
+		 * @return the solution of a * x = b
+		 */
+		double[] solve(double[] b) {
+			int n = scale.length;
+			//forward substitution L * z = S * b
+			double[] x = new double[n];
+			for (int i = 0; i < n; i++) {
+				double sum = b[i] * scale[i];
+				for (int k = 0; k < i; k++) {
+					sum -= l[i][k] * x[k];
+				}
+				x[i] = sum / l[i][i];
+			}
+			//back substitution L^T * y = z, and undo the scaling
+			for (int i = n - 1; i >= 0; i--) {
+				double sum = x[i];
+				for (int k = i + 1; k < n; k++) {
+					sum -= l[k][i] * x[k];
+				}
+				x[i] = sum / l[i][i];
+			}
+			for (int i = 0; i < n; i++) {
+				x[i] *= scale[i];
+			}
+			return x;
+		}
+	}
+
+	/**
+	 * Solves min ||[1 X] * teta - y|| with a Householder QR factorization of the
+	 * design matrix itself, which avoids squaring the condition number the way
+	 * the normal equations do.
+	 * @param data
+	 * @return the coefficients (intercept first), or null if the design matrix is rank deficient
+	 */
+	static double[] qr(DesignMatrix data) {
+		int m = data.numRows, n = data.numFeatures + 1;
+		if (m < n) return null;
+		//column-major copy of [1 X] so every Householder reflection works on contiguous columns
+		double[][] columns = new double[n][m];
+		for (int r = 0, offset = 0; r < m; r++, offset += data.numFeatures) {
+			columns[0][r] = 1;
+			for (int j = 0; j < data.numFeatures; j++) {
+				columns[j + 1][r] = data.features[offset + j];
+			}
+		}
+		double[] y = data.targets.clone();
+		double[] diagonal = new double[n];
+		double largest = 0;
+		for (int j = 0; j < n; j++) {
+			double[] column = columns[j];
+			double norm = 0;
+			for (int r = j; r < m; r++) {
+				norm += column[r] * column[r];
+			}
+			norm = Math.sqrt(norm);
+			//R(j,j) gets the sign opposite to the pivot to avoid cancellation
+			double alpha = column[j] > 0 ? -norm : norm;
+			diagonal[j] = alpha;
+			largest = Math.max(largest, norm);
+			if (norm == 0) continue;
+			//householder vector v = column - alpha * e_j, stored in place
+			column[j] -= alpha;
+			double vtv = 0;
+			for (int r = j; r < m; r++) {
+				vtv += column[r] * column[r];
+			}
+			//reflect the remaining columns and the targets
+			for (int k = j + 1; k < n; k++) {
+				reflect(column, columns[k], j, m, vtv);
+			}
+			reflect(column, y, j, m, vtv);
+		}
+		for (int j = 0; j < n; j++) {
+			if (!(Math.abs(diagonal[j]) > QR_TOLERANCE * largest)) return null;
+		}
+		//back substitution R * teta = Q^T * y
+		double[] teta = new double[n];
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = y[i];
+			for (int k = i + 1; k < n; k++) {
+				sum -= columns[k][i] * teta[k];
+			}
+			teta[i] = sum / diagonal[i];
+		}
+		return teta;
+	}
+
+	/**
+	 * Applies the reflection (I - 2 * v * v^T / v^T * v) to rows [from, m) of 'target'.
+	 */
+	private static void reflect(double[] v, double[] target, int from, int m, double vtv) {
+		double dot = 0;
+		for (int r = from; r < m; r++) {
+			dot += v[r] * target[r];
+		}
+		double factor = 2.0 * dot / vtv;
+		for (int r = from; r < m; r++) {
+			target[r] -= factor * v[r];
+		}
+	}
+}
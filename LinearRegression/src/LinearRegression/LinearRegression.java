@@ -1,22 +1,101 @@
 package LinearRegression;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
 import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
 
-public class LinearRegression implements Classifier {
+public class LinearRegression implements Classifier, UpdateableClassifier {
+	
+	/**
+	 * How the coefficients are found: the gradient descent of the assignment, or a
+	 * direct least squares solve (normal equations with Cholesky, or QR of the data).
+	 * The direct solvers fall back to gradient descent on ill-conditioned data.
+	 */
+	public enum Solver{GradientDescent, Cholesky, QR};
 	
     private int m_ClassIndex;
 	private int m_truNumAttributes;
+	//where the attribute of teta i + 1 is found in an instance, the first m_truNumAttributes ones unless set otherwise
+	private int[] m_attributeIndices;
 	private double[] m_coefficients;
 	private double m_alpha;
+	//primitive copy of the training data and scratch buffers for 'updateTetas'
+	private DesignMatrix m_data;
+	private double[] m_residuals;
+	private double[] m_gradient;
+	private Solver m_solver = Solver.GradientDescent;
+	//adaptive optimizer used instead of findAlpha + gradientDescent when set
+	private Optimizer m_optimizer;
+	private double m_tolerance = 1e-9;
+	private int m_maxIterations = 100000;
+	//work done by the last build: coefficient updates and passes over the training data
+	private long m_iterations;
+	private long m_dataPasses;
+	//recursive least squares state for 'updateClassifier': the sufficient statistics of the
+	//last build, and the inverse of X^T * X once the first update has asked for it
+	private GramMatrix m_gram;
+	//whether m_coefficients are the exact least squares fit of the last build (closed form solvers)
+	private boolean m_leastSquaresFit;
+	private double[][] m_inverseGram;
+	private double[] m_row;
+	private double[] m_gain;
+	//what the scoring methods read; m_coefficients is only the working copy of the trainers
+	private volatile ModelSnapshot m_snapshot;
 
+	/**
+	 * Trains on the given data and publishes the result as a new snapshot.
+	 * Builds and updates are serialised; scoring never waits for them.
+	 */
 	@Override
-	public void buildClassifier(Instances trainingData) throws Exception {
+	public synchronized void buildClassifier(Instances trainingData) throws Exception {
+		train(trainingData);
+		publish();
+	}
+	
+	private void train(Instances trainingData) throws Exception {
 		m_ClassIndex = trainingData.classIndex();
 		m_truNumAttributes = trainingData.numAttributes() - 1;
+		m_attributeIndices = firstAttributes(m_truNumAttributes);
+		m_data = null;
+		m_gram = null;
+		m_inverseGram = null;
+		m_leastSquaresFit = false;
+		m_iterations = 0;
+		m_dataPasses = 0;
+		//closed form solvers, 'm_alpha' is not needed for those
+		if (m_solver == Solver.Cholesky) {
+			m_gram = GramMatrix.of(trainingData, m_ClassIndex, m_truNumAttributes);
+			m_coefficients = m_gram.solve();
+			m_dataPasses = 1;
+		} else if (m_solver == Solver.QR) {
+			m_data = new DesignMatrix(trainingData, m_ClassIndex, m_truNumAttributes);
+			m_coefficients = LeastSquares.qr(m_data);
+			m_dataPasses = 1;
+		}
+		if (m_solver != Solver.GradientDescent && m_coefficients != null) {
+			m_leastSquaresFit = true;
+			return;
+		}
+		//gradient descent, or the system was too ill-conditioned for a direct solve
 		m_coefficients = new double [m_truNumAttributes + 1];
+		if (m_data == null) {
+			m_data = new DesignMatrix(trainingData, m_ClassIndex, m_truNumAttributes);
+		}
+		m_residuals = new double [m_data.numRows];
+		m_gradient = new double [m_truNumAttributes + 1];
+		if (m_optimizer != null) {
+			m_coefficients = optimize();
+			return;
+		}
 		//setting all tetas to the value 1
 		for (int i = 0; i < m_truNumAttributes; i++) {
 			m_coefficients[i] = 1;
@@ -24,56 +103,102 @@ public class LinearRegression implements Classifier {
 		
 		//relevant only for the first time for 'm_alpha'
 		if (m_alpha == 0) {
-			findAlpha(trainingData);
+			findAlpha();
 			for (int i = 0; i < m_truNumAttributes; i++) {
 				m_coefficients[i] = 1;
 			}
 		}
-		m_coefficients = gradientDescent(trainingData);
+		m_coefficients = gradientDescent();
 	}
 	
-	private void findAlpha(Instances data) throws Exception {
-		double prevErr = Double.MAX_VALUE, currErr = Double.MAX_VALUE, minimumErr  = Double.MAX_VALUE, bestAlpha = 0;
+	/**
+	 * Tries the learning rates 3^-17 .. 3^0 and keeps the one with the smallest error.
+	 * Every candidate trains on its own coefficient buffer, so they all run
+	 * at the same time on the common fork-join pool.
+	 * 
+	 * @throws Exception
+	 */
+	private void findAlpha() throws Exception {
+		double minimumErr = Double.MAX_VALUE, bestAlpha = 0;
+		//smallest final error among the finished candidates, shared so the others can give up early
+		final AtomicLong bestBits = new AtomicLong(Double.doubleToLongBits(Double.MAX_VALUE));
+		List<Callable<double[]>> candidates = new ArrayList<>();
 		for (int i = -17; i <= 0; i++) {
-			m_alpha = Math.pow(3, i);
-			for (int j = 0; j <= m_truNumAttributes; j++) {
-				m_coefficients[j] = 1;
-			}
-			prevErr = calculateMSE(data);
-			for (int j = 1; j <= 20000; j++) {
-				currErr = calculateMSE(data);
-				updateTetas(data);
-				if (j % 100 == 0) {
-					currErr = calculateMSE(data);
-					//if the current error is larger then the previous one, exit
-					if (currErr >= prevErr) {
-						break;
-					}
-					prevErr = currErr;
-				}
-			}
+			final double alpha = Math.pow(3, i);
+			candidates.add(() -> trainCandidate(alpha, bestBits));
+		}
+		List<Future<double[]>> results = ForkJoinPool.commonPool().invokeAll(candidates);
+		for (int i = -17; i <= 0; i++) {
+			double[] result = results.get(i + 17).get();
+			double currErr = result[0];
+			m_iterations += (long) result[2];
+			m_dataPasses += (long) result[3];
 			//if the current error is the smallest to be found among all alphas so far, update 'minimumErr' and 'bestAlpha' respectively
 			if (currErr < minimumErr) {
 				minimumErr = currErr;
-				bestAlpha = m_alpha;
+				bestAlpha = Math.pow(3, i);
 			}
-			System.out.println("i: " + i + " error is: " + currErr);
-			//updating 'currErr' for the next iteration over 'i'
-			currErr = Double.MAX_VALUE;
+			System.out.println("i: " + i + " error is: " + currErr + (result[1] != 0 ? " (abandoned)" : ""));
 		}
 		//updating 'm_alpha' to be the best alpha found
 		m_alpha = bestAlpha;
 	}
 	
+	/**
+	 * Runs up to 20000 steps with a single learning rate, checking the error every 100 steps.
+	 * Stops when the error stops decreasing, or abandons the candidate once it can no longer
+	 * beat the best error found so far: for a stable step on this quadratic cost the decrease
+	 * per check only shrinks, so the current error minus the remaining checks times the last
+	 * decrease is a lower bound on where the candidate can end up.
+	 * 
+	 * @param alpha
+	 * @param bestBits
+	 * @return {final error, 1 if the candidate was abandoned and 0 otherwise, steps made, passes over the data}
+	 */
+	private double[] trainCandidate(double alpha, AtomicLong bestBits) {
+		double[] coefficients = new double [m_truNumAttributes + 1];
+		double[] residuals = new double [m_data.numRows];
+		double[] gradient = new double [m_truNumAttributes + 1];
+		for (int j = 0; j <= m_truNumAttributes; j++) {
+			coefficients[j] = 1;
+		}
+		double prevErr = m_data.mse(coefficients), currErr = Double.MAX_VALUE;
+		int j;
+		for (j = 1; j <= 20000; j++) {
+			m_data.descend(coefficients, alpha, residuals, gradient);
+			if (j % 100 == 0) {
+				currErr = m_data.mse(coefficients);
+				//if the current error is not smaller then the previous one (or diverged to NaN), exit
+				if (!(currErr < prevErr)) {
+					break;
+				}
+				double remainingChecks = (20000 - j) / 100;
+				if (currErr - remainingChecks * (prevErr - currErr) > Double.longBitsToDouble(bestBits.get())) {
+					return new double[] {currErr, 1, j, 2 * j + j / 100 + 1};
+				}
+				prevErr = currErr;
+			}
+		}
+		//publishing the error if it is the best so far
+		long current;
+		while (currErr < Double.longBitsToDouble(current = bestBits.get())) {
+			if (bestBits.compareAndSet(current, Double.doubleToLongBits(currErr))) {
+				break;
+			}
+		}
+		int steps = Math.min(j, 20000);
+		//two passes per step, one per error check and one for the starting error
+		return new double[] {currErr, 0, steps, 2 * steps + steps / 100 + 1};
+	}
+	
 	/**
 	 * An implementation of the gradient descent algorithm which should
 	 * return the weights of a linear regression predictor which minimizes
 	 * the average squared error.
      * 
-	 * @param trainingData
 	 * @throws Exception
 	 */
-	private double[] gradientDescent(Instances trainingData) throws Exception {
+	private double[] gradientDescent() throws Exception {
 		//starting values for the errors variables which enable the loop starting condition
 		double prevError = 1;
 		double curError = 0;
@@ -86,81 +211,214 @@ public class LinearRegression implements Classifier {
 			prevError = curError;
 			//100 "updateTetas"
 			for (int i = 0; i < 100; i++) {
-				updateTetas(trainingData);
+				updateTetas();
 			}
-			curError = calculateMSE(trainingData);
+			curError = m_data.mse(m_coefficients);
+			m_dataPasses++;
 		}
 		return m_coefficients;
 	}
 	
 	/**
-	 * Update tetas method is called each iteration of the
-	 * find alpha method and the gradient decsent method.
+	 * Minimizes the cost with 'm_optimizer', starting from all tetas set to 1, until the
+	 * relative change of the cost between two iterations drops to 'm_tolerance'
+	 * or 'm_maxIterations' is reached.
 	 * 
-	 * @param trainingData
 	 * @throws Exception
 	 */
-	private void updateTetas(Instances trainingData) throws Exception {
-		//temporary array for the tetas
-		double [] tempTetas = new double [m_truNumAttributes + 1];
-		double derivative  = 0, derivativeSum = 0;
+	private double[] optimize() throws Exception {
 		for (int i = 0; i <= m_truNumAttributes; i++) {
-				for (int j = 0; j < trainingData.numInstances(); j++) {
-					//calculate the derivative according to the formula
-					derivative  = regressionPrediction(trainingData.instance(j)) - trainingData.instance(j).value(m_ClassIndex);
-					//for teta = 0 , no need to multiply by X0 (equals 1)
-					if (i > 0) {
-						derivative  *= trainingData.instance(j).value(i - 1);
-					}
-					derivativeSum += derivative;
-				}
-				//updating teta i
-				tempTetas[i] = m_coefficients[i] - (m_alpha * derivativeSum / (double)trainingData.numInstances());
-				derivativeSum = 0;
+			m_coefficients[i] = 1;
 		}
-		//updating 'm_coefficients' tetas array, corresponding to the temporary array
-		for (int i = 0; i <= m_truNumAttributes; i++) {
-			m_coefficients[i] = tempTetas[i];
+		DesignMatrix.CountingObjective objective = m_data.objective();
+		m_optimizer.reset(m_coefficients.length);
+		double prevError = Double.MAX_VALUE;
+		while (m_iterations < m_maxIterations) {
+			double curError = m_optimizer.step(objective, m_coefficients);
+			m_iterations++;
+			if (Math.abs(prevError - curError) <= m_tolerance * Math.abs(prevError)) {
+				break;
+			}
+			prevError = curError;
 		}
-		return;
+		m_dataPasses += objective.passes;
+		return m_coefficients;
+	}
+	
+	/**
+	 * Update tetas method is called each iteration of the
+	 * find alpha method and the gradient decsent method.
+	 * Works on the cached design matrix: one pass computes all the residuals and
+	 * a second pass accumulates the whole gradient, so a step costs O(attributes * rows).
+	 * 
+	 * @throws Exception
+	 */
+	private void updateTetas() throws Exception {
+		m_data.descend(m_coefficients, m_alpha, m_residuals, m_gradient);
+		m_iterations++;
+		m_dataPasses += 2;
 	}
 
 	/**
 	 * Returns the prediction of a linear regression predictor with weights
 	 * given by m_coefficients on a single instance.
+	 * Reads the last published snapshot, so it never sees a model in the middle of training.
      *
 	 * @param instance
 	 * @return
 	 * @throws Exception
 	 */
 	public double regressionPrediction(Instance instance) throws Exception {
-		double innerProduct = m_coefficients[0];
-		for (int i = 0; i < m_truNumAttributes; i++) {
-			innerProduct += m_coefficients[i + 1] * instance.value(i);
-		}
-		//return [ X0 + X(i)*Teta(i) ] for each 1 <= i <= m_truNumAttributes
-		return innerProduct;
+		return getSnapshot().regressionPrediction(instance);
+	}
+	
+	/**
+	 * See ModelSnapshot.predictRows.
+	 */
+	public void predictRows(double[] rows, int offset, int numRows, double[] predictions) {
+		getSnapshot().predictRows(rows, offset, numRows, predictions);
+	}
+	
+	/**
+	 * See ModelSnapshot.predictColumns.
+	 */
+	public void predictColumns(double[][] columns, int numRows, double[] predictions) {
+		getSnapshot().predictColumns(columns, numRows, predictions);
 	}
 	
 	/**
 	 * Calculates the total squared error over the data on a linear regression
 	 * predictor with weights given by m_coefficients.
+	 * The whole evaluation uses a single snapshot.
      *
 	 * @param testData
 	 * @return
 	 * @throws Exception
 	 */
 	public double calculateMSE(Instances data) throws Exception {
-		double cost = 0;
-		for (int i = 0; i < data.numInstances(); i++) {
-			//sum up the errors of all predictions minus actual value (squared)
-			cost += Math.pow((regressionPrediction(data.instance(i)) - (double)data.instance(i).value(m_ClassIndex)), 2.0);
+		return getSnapshot().calculateMSE(data);
+	}
+	
+	/**
+	 * The model as of the last completed build or update. Snapshots are immutable, so any
+	 * number of threads can score with them while the model is being retrained.
+	 * @return
+	 */
+	public ModelSnapshot getSnapshot() {
+		ModelSnapshot snapshot = m_snapshot;
+		if (snapshot == null) {
+			throw new IllegalStateException("The model was not built yet");
 		}
-		//dividing by 2m 
-		cost = cost / ((double)data.numInstances() * 2.0);
-		return cost;
+		return snapshot;
+	}
+	
+	/**
+	 * Publishes a copy of the working coefficients to the scoring threads.
+	 */
+	void publish() {
+		m_snapshot = new ModelSnapshot(m_ClassIndex, m_attributeIndices, m_coefficients);
 	}
     
+	/**
+	 * Absorbs one new training instance without rebuilding, with recursive least squares:
+	 * the model keeps the inverse of X^T * X and corrects the coefficients by the
+	 * prediction error of the new row, in O(attributes^2).
+	 * The inverse is computed (once, O(attributes^3)) from the data of the last build,
+	 * and the model keeps being the exact least squares fit of all the rows seen so far
+	 * (up to the slight regularisation of a singular X^T * X). A model built by gradient
+	 * descent is first replaced by the least squares fit of its training data.
+	 * 
+	 * @param instance
+	 * @throws Exception if the model has no training data to start from: it was never
+	 * built, or its coefficients were set by another trainer (StreamingTrainer, RidgePath,
+	 * MultiTargetRegression)
+	 */
+	@Override
+	public synchronized void updateClassifier(Instance instance) throws Exception {
+		if (m_snapshot == null || (m_inverseGram == null && m_gram == null && m_data == null)) {
+			throw new Exception("buildClassifier must be called before updateClassifier");
+		}
+		if (m_inverseGram == null) {
+			initializeInverseGram();
+		}
+		int n = m_truNumAttributes + 1;
+		m_row[0] = 1;
+		for (int i = 0; i < m_truNumAttributes; i++) {
+			m_row[i + 1] = instance.value(m_attributeIndices[i]);
+		}
+		//gain = P * x / (1 + x^T * P * x)
+		double denominator = 1, error = instance.value(m_ClassIndex);
+		for (int i = 0; i < n; i++) {
+			double sum = 0;
+			for (int j = 0; j < n; j++) {
+				sum += m_inverseGram[i][j] * m_row[j];
+			}
+			m_gain[i] = sum;
+			denominator += m_row[i] * sum;
+			error -= m_coefficients[i] * m_row[i];
+		}
+		for (int i = 0; i < n; i++) {
+			m_coefficients[i] += m_gain[i] * error / denominator;
+		}
+		//P = P - (P * x) * (P * x)^T / (1 + x^T * P * x)
+		for (int i = 0; i < n; i++) {
+			double factor = m_gain[i] / denominator;
+			for (int j = 0; j < n; j++) {
+				m_inverseGram[i][j] -= factor * m_gain[j];
+			}
+		}
+		publish();
+	}
+	
+	/**
+	 * P = (X^T * X)^-1 of the data of the last build, slightly regularised if singular,
+	 * and the coefficients P * X^T * y unless they already are the least squares fit.
+	 */
+	private void initializeInverseGram() {
+		int n = m_truNumAttributes + 1;
+		m_row = new double [n];
+		m_gain = new double [n];
+		m_inverseGram = new double [n][n];
+		if (m_gram == null && m_data != null) {
+			m_gram = GramMatrix.of(m_data);
+		}
+		LeastSquares.CholeskyFactor factor = LeastSquares.factor(m_gram.xtx);
+		if (factor == null) {
+			double[][] regularised = new double [n][];
+			double largest = 0;
+			for (int i = 0; i < n; i++) {
+				regularised[i] = m_gram.xtx[i].clone();
+				largest = Math.max(largest, regularised[i][i]);
+			}
+			for (int i = 0; i < n; i++) {
+				regularised[i][i] += 1e-8 * largest + Double.MIN_NORMAL;
+			}
+			factor = LeastSquares.factor(regularised);
+		}
+		double[] unit = new double [n];
+		for (int j = 0; j < n; j++) {
+			unit[j] = 1;
+			double[] column = factor.solve(unit);
+			for (int i = 0; i < n; i++) {
+				m_inverseGram[i][j] = column[i];
+			}
+			unit[j] = 0;
+		}
+		if (!m_leastSquaresFit) {
+			for (int i = 0; i < n; i++) {
+				double sum = 0;
+				for (int j = 0; j < n; j++) {
+					sum += m_inverseGram[i][j] * m_gram.xty[j];
+				}
+				m_coefficients[i] = sum;
+			}
+			m_leastSquaresFit = true;
+		}
+		//the rows are in P now, nothing else needs them
+		m_gram = null;
+		m_data = null;
+	}
+	
     @Override
 	public double classifyInstance(Instance arg0) throws Exception {
 		// Don't change
@@ -179,6 +437,103 @@ public class LinearRegression implements Classifier {
 		return null;
 	}
 	
+	/**
+	 * Prepares an untrained model for the given data layout, with all tetas set to 1.
+	 * Used by trainers which update the coefficients themselves (StreamingTrainer).
+	 * @param classIndex
+	 * @param numAttributes number of attributes not counting the class
+	 */
+	void initialize(int classIndex, int numAttributes) {
+		initialize(classIndex, firstAttributes(numAttributes));
+	}
+	
+	/**
+	 * Same as above for a model over arbitrary attributes of the instances
+	 * (used by MultiTargetRegression, where the other targets aren't attributes).
+	 * @param classIndex
+	 * @param attributeIndices where the attribute of teta i + 1 is found in an instance
+	 */
+	void initialize(int classIndex, int[] attributeIndices) {
+		m_ClassIndex = classIndex;
+		m_truNumAttributes = attributeIndices.length;
+		m_attributeIndices = attributeIndices.clone();
+		m_coefficients = new double [m_truNumAttributes + 1];
+		for (int i = 0; i <= m_truNumAttributes; i++) {
+			m_coefficients[i] = 1;
+		}
+		m_data = null;
+		m_gram = null;
+		m_inverseGram = null;
+		m_leastSquaresFit = false;
+		publish();
+	}
+	
+	private static int[] firstAttributes(int numAttributes) {
+		int[] indices = new int [numAttributes];
+		for (int i = 0; i < numAttributes; i++) {
+			indices[i] = i;
+		}
+		return indices;
+	}
+	
+	/**
+	 * The working coefficients, trainers which change them call 'publish' when done.
+	 */
+	double[] coefficients() {
+		return m_coefficients;
+	}
+	
+	void setAlpha(double alpha) {
+		m_alpha = alpha;
+	}
+	
+	/**
+	 * Selects how 'buildClassifier' finds the coefficients.
+	 * @param solver
+	 */
+	public void setSolver(Solver solver) {
+		m_solver = solver;
+	}
+	
+	public Solver getSolver() {
+		return m_solver;
+	}
+	
+	/**
+	 * Uses the given optimizer instead of the findAlpha + gradientDescent cycle,
+	 * null restores the default.
+	 * @param optimizer
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		m_optimizer = optimizer;
+	}
+	
+	/**
+	 * Relative change of the cost between two iterations below which 'm_optimizer' stops.
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		m_tolerance = tolerance;
+	}
+	
+	public void setMaxIterations(int maxIterations) {
+		m_maxIterations = maxIterations;
+	}
+	
+	/**
+	 * @return the number of coefficient updates made by the last build
+	 */
+	public long getIterations() {
+		return m_iterations;
+	}
+	
+	/**
+	 * @return the number of passes over the training data made by the last build
+	 */
+	public long getDataPasses() {
+		return m_dataPasses;
+	}
+	
 	/**
 	 * getter method so we can print m_alpha and keep it private 
 	 * @return
@@ -61,11 +61,11 @@ public class MainHW1 {
 		double testingError = LR.calculateMSE(testing);
 		System.out.println("Test error with all features is: " + testingError);
 		
-   		//build classifiers with all 3 attributes combinations
-		Instances threeTrain = training; 	//Initialize an Instances object to hold three attributes each time.
-		Instances bestThree = training;  	//An Instances object to contain the best three attributes considered so far.
+   		//fit all 3 attributes combinations from the X^T * X / X^T * y statistics of the training data,
+		//computed once, instead of filtering the data and running gradient descent per combination
+		SubsetSearch search = new SubsetSearch(training);
 		
-		//Use the remover to single out three different attributes.
+		//Use the remover to single out the best three attributes.
 		Remove rm = new Remove();  
 		//String used to tell which features are the three best (to be used in the Remove object).
 		String finalInd = "";
@@ -78,39 +78,30 @@ public class MainHW1 {
 		}
 		
 		//Loop through all available combinations of attributes
-		for (int i = 1; i < training.numAttributes(); i++) {
-			for (int j = i + 1; j < training.numAttributes(); j++) {
-				for (int k = j + 1; k < training.numAttributes(); k++) {
-					String ind = "" + i + "," + j + "," + k + ", " + training.numAttributes();
-					rm.setAttributeIndices(ind);
-					rm.setInvertSelection(true);
-					rm.setInputFormat(training);
-					threeTrain = Filter.useFilter(training, rm);
-					LR.buildClassifier(threeTrain);
-					
-					currErr = LR.calculateMSE(threeTrain);
-					
-					if (currErr < minErr) {
-						finalInd = ind;
-						minErr = currErr;
-						best[0] = i;
-						best[1] = j;
-						best[2] = k;
-						bestThree = threeTrain;
-					}
-					System.out.println(currErr); /*
-					threeTrain.attribute(0).name() + ", " + 
-							  		   threeTrain.attribute(1).name() + ", " +
-							  		   threeTrain.attribute(2).name() + " Error is: " + */
+		for (SubsetResult result : search.evaluateAll(3)) {
+			currErr = result.mse;
+			if (currErr < minErr) {
+				minErr = currErr;
+				//1-based indices, as the Remove filter expects
+				for (int i = 0; i < 3; i++) {
+					best[i] = result.attributes[i] + 1;
 				}
 			}
+			System.out.println(currErr);
 		}
+		finalInd = "" + best[0] + "," + best[1] + "," + best[2] + ", " + training.numAttributes();
+		rm.setAttributeIndices(finalInd);
+		rm.setInvertSelection(true);
+		rm.setInputFormat(training);
+		Instances bestThree = Filter.useFilter(training, rm);
 		System.out.println("Training error of the best three features is:  " + training.attribute(best[0] - 1).name() + ", "
 														     				 + training.attribute(best[1] - 1).name() + ", "
 														     				 + training.attribute(best[2] - 1).name() + " Error is: "+ minErr);
 		
 		//Since we have allready found the best three features, use them
-		//with the same LinearRegression object initialized before
+		//with the same LinearRegression object initialized before, solved
+		//exactly like the search did
+		LR.setSolver(LinearRegression.Solver.Cholesky);
 		LR.buildClassifier(bestThree);
 		rm.setAttributeIndices(finalInd);
 		rm.setInputFormat(testing);
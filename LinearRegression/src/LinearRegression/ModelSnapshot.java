@@ -0,0 +1,132 @@
+package LinearRegression;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * An immutable copy of a trained LinearRegression. LinearRegression publishes a new
+ * snapshot at the end of every build or update instead of exposing the coefficients
+ * its trainers overwrite in place, so scoring threads never see half-updated weights
+ * and don't need any locking.
+ */
+public final class ModelSnapshot {
+	private final int m_ClassIndex;
+	private final int m_truNumAttributes;
+	private final int[] m_attributeIndices;
+	private final double[] m_coefficients;
+
+	ModelSnapshot(int classIndex, int[] attributeIndices, double[] coefficients) {
+		m_ClassIndex = classIndex;
+		m_truNumAttributes = attributeIndices.length;
+		m_attributeIndices = attributeIndices.clone();
+		m_coefficients = coefficients.clone();
+	}
+
+	/**
+	 * @return a copy of the tetas, the intercept first
+	 */
+	public double[] getCoefficients() {
+		return m_coefficients.clone();
+	}
+
+	/**
+	 * Returns the prediction of a linear regression predictor with weights
+	 * given by m_coefficients on a single instance.
+	 *
+	 * @param instance
+	 * @return
+	 */
+	public double regressionPrediction(Instance instance) {
+		double innerProduct = m_coefficients[0];
+		for (int i = 0; i < m_truNumAttributes; i++) {
+			innerProduct += m_coefficients[i + 1] * instance.value(m_attributeIndices[i]);
+		}
+		//return [ X0 + X(i)*Teta(i) ] for each 1 <= i <= m_truNumAttributes
+		return innerProduct;
+	}
+
+	/**
+	 * Batch version of 'regressionPrediction' over a primitive row-major block:
+	 * the attributes of row r are at rows[offset + r * numAttributes ...], in the order
+	 * of the training data (class excluded). Writes into the caller's array and
+	 * allocates nothing. Four rows are scored together, which keeps four independent
+	 * dot products in flight; each one sums in the same order as 'regressionPrediction',
+	 * so the results are identical.
+	 * 
+	 * @param rows
+	 * @param offset index of the first row's first attribute in 'rows'
+	 * @param numRows
+	 * @param predictions receives the prediction of row r at predictions[r]
+	 */
+	public void predictRows(double[] rows, int offset, int numRows, double[] predictions) {
+		final double[] teta = m_coefficients;
+		final int n = m_truNumAttributes;
+		int r = 0;
+		for (; r + 3 < numRows; r += 4) {
+			int o0 = offset + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+			double p0 = teta[0], p1 = teta[0], p2 = teta[0], p3 = teta[0];
+			for (int i = 0; i < n; i++) {
+				double t = teta[i + 1];
+				p0 += t * rows[o0 + i];
+				p1 += t * rows[o1 + i];
+				p2 += t * rows[o2 + i];
+				p3 += t * rows[o3 + i];
+			}
+			predictions[r] = p0;
+			predictions[r + 1] = p1;
+			predictions[r + 2] = p2;
+			predictions[r + 3] = p3;
+		}
+		for (; r < numRows; r++) {
+			int o = offset + r * n;
+			double p = teta[0];
+			for (int i = 0; i < n; i++) {
+				p += teta[i + 1] * rows[o + i];
+			}
+			predictions[r] = p;
+		}
+	}
+
+	/**
+	 * Batch version of 'regressionPrediction' over a columnar block: columns[i][r] is
+	 * attribute i of row r. Every attribute is one multiply-add over contiguous arrays,
+	 * a loop the JIT compiles to SIMD instructions. Allocates nothing and gives the
+	 * same results as 'regressionPrediction'.
+	 * 
+	 * @param columns
+	 * @param numRows
+	 * @param predictions receives the prediction of row r at predictions[r]
+	 */
+	public void predictColumns(double[][] columns, int numRows, double[] predictions) {
+		final double[] teta = m_coefficients;
+		Arrays.fill(predictions, 0, numRows, teta[0]);
+		for (int i = 0; i < m_truNumAttributes; i++) {
+			final double t = teta[i + 1];
+			final double[] column = columns[i];
+			for (int r = 0; r < numRows; r++) {
+				predictions[r] += t * column[r];
+			}
+		}
+	}
+
+	/**
+	 * Calculates the total squared error over the data on a linear regression
+	 * predictor with weights given by m_coefficients.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public double calculateMSE(Instances data) {
+		double cost = 0;
+		for (int i = 0; i < data.numInstances(); i++) {
+			//sum up the errors of all predictions minus actual value (squared)
+			double error = regressionPrediction(data.instance(i)) - data.instance(i).value(m_ClassIndex);
+			cost += error * error;
+		}
+		//dividing by 2m 
+		cost = cost / ((double)data.numInstances() * 2.0);
+		return cost;
+	}
+}
@@ -0,0 +1,37 @@
+package LinearRegression;
+
+/**
+ * Gradient descent with (heavy ball) momentum:
+ * velocity = momentum * velocity - alpha * gradient, teta += velocity.
+ */
+public class MomentumOptimizer implements Optimizer {
+	private final double m_alpha;
+	private final double m_momentum;
+	private double[] m_velocity;
+	private double[] m_gradient;
+
+	/**
+	 * @param alpha the learning rate
+	 * @param momentum fraction of the previous step kept, usually 0.9
+	 */
+	public MomentumOptimizer(double alpha, double momentum) {
+		m_alpha = alpha;
+		m_momentum = momentum;
+	}
+
+	@Override
+	public void reset(int numCoefficients) {
+		m_velocity = new double[numCoefficients];
+		m_gradient = new double[numCoefficients];
+	}
+
+	@Override
+	public double step(Objective objective, double[] coefficients) {
+		double cost = objective.gradient(coefficients, m_gradient);
+		for (int i = 0; i < coefficients.length; i++) {
+			m_velocity[i] = m_momentum * m_velocity[i] - m_alpha * m_gradient[i];
+			coefficients[i] += m_velocity[i];
+		}
+		return cost;
+	}
+}
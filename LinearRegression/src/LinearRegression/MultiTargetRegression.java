@@ -0,0 +1,101 @@
+package LinearRegression;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Fits one least squares model per target attribute, all sharing the same feature
+ * attributes, in a single pass over the data. X^T * X is accumulated once and
+ * X^T * Y gets one column per target; rows are processed in column-major blocks so
+ * each block is read from cache for every product. X^T * X is factored once and
+ * every target only pays for two triangular solves.
+ * The models returned are independent LinearRegression objects.
+ */
+public class MultiTargetRegression {
+	//rows per block, small enough for a block of a few dozen columns to stay in L2
+	private static final int BLOCK_SIZE = 256;
+	private final int[] m_featureIndices;
+	private final int[] m_targetIndices;
+
+	/**
+	 * @param featureIndices attributes used as features by every model
+	 * @param targetIndices one model is fitted for each of these attributes
+	 */
+	public MultiTargetRegression(int[] featureIndices, int[] targetIndices) {
+		m_featureIndices = featureIndices.clone();
+		m_targetIndices = targetIndices.clone();
+	}
+
+	/**
+	 * @param data
+	 * @return one model per target, in the order of the target indices
+	 * @throws Exception if the features are too ill-conditioned for a direct solve
+	 */
+	public LinearRegression[] fit(Instances data) throws Exception {
+		int d = m_featureIndices.length + 1, t = m_targetIndices.length;
+		//column 0 of the block is the intercept's column of ones
+		double[][] x = new double[d][BLOCK_SIZE];
+		double[][] y = new double[t][BLOCK_SIZE];
+		Arrays.fill(x[0], 1.0);
+		double[][] xtx = new double[d][d];
+		double[][] xty = new double[t][d];
+		int size = 0;
+		for (Instance instance : data) {
+			for (int j = 1; j < d; j++) {
+				x[j][size] = instance.value(m_featureIndices[j - 1]);
+			}
+			for (int k = 0; k < t; k++) {
+				y[k][size] = instance.value(m_targetIndices[k]);
+			}
+			if (++size == BLOCK_SIZE) {
+				accumulate(x, y, size, xtx, xty);
+				size = 0;
+			}
+		}
+		accumulate(x, y, size, xtx, xty);
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < i; j++) {
+				xtx[i][j] = xtx[j][i];
+			}
+		}
+
+		LeastSquares.CholeskyFactor factor = LeastSquares.factor(xtx);
+		if (factor == null) {
+			throw new Exception("The feature attributes are too ill-conditioned for a direct solve");
+		}
+		LinearRegression[] models = new LinearRegression[t];
+		for (int k = 0; k < t; k++) {
+			models[k] = new LinearRegression();
+			models[k].initialize(m_targetIndices[k], m_featureIndices);
+			System.arraycopy(factor.solve(xty[k]), 0, models[k].coefficients(), 0, d);
+			models[k].publish();
+		}
+		return models;
+	}
+
+	/**
+	 * Adds the products of the first 'size' rows of the block: the upper triangle of
+	 * X^T * X and all of X^T * Y (stored transposed, one row per target).
+	 */
+	private static void accumulate(double[][] x, double[][] y, int size, double[][] xtx, double[][] xty) {
+		for (int i = 0; i < x.length; i++) {
+			double[] xi = x[i];
+			for (int j = i; j < x.length; j++) {
+				xtx[i][j] += dot(xi, x[j], size);
+			}
+			for (int k = 0; k < y.length; k++) {
+				xty[k][i] += dot(xi, y[k], size);
+			}
+		}
+	}
+
+	private static double dot(double[] a, double[] b, int size) {
+		double sum = 0;
+		for (int r = 0; r < size; r++) {
+			sum += a[r] * b[r];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,21 @@
+package LinearRegression;
+
+/**
+ * The cost function an Optimizer minimizes. For LinearRegression this is
+ * the cost of calculateMSE over the training data.
+ */
+public interface Objective {
+	/**
+	 * @param coefficients
+	 * @return the cost of the given coefficients
+	 */
+	double cost(double[] coefficients);
+
+	/**
+	 * Fills 'gradient' with the gradient of the cost at 'coefficients'.
+	 * @param coefficients
+	 * @param gradient
+	 * @return the cost of the given coefficients, which comes for free with the gradient
+	 */
+	double gradient(double[] coefficients, double[] gradient);
+}
@@ -0,0 +1,21 @@
+package LinearRegression;
+
+/**
+ * A first order update rule for LinearRegression's coefficients,
+ * used instead of the fixed learning rate picked by findAlpha.
+ */
+public interface Optimizer {
+	/**
+	 * Clears any state kept between steps, called once before every build.
+	 * @param numCoefficients
+	 */
+	void reset(int numCoefficients);
+
+	/**
+	 * Updates 'coefficients' in place.
+	 * @param objective
+	 * @param coefficients
+	 * @return the cost of the coefficients before the update
+	 */
+	double step(Objective objective, double[] coefficients);
+}
@@ -0,0 +1,225 @@
+package LinearRegression;
+
+import weka.core.Instances;
+
+/**
+ * Ridge regression for a whole grid of regularisation values from a single
+ * factorisation. The centred design matrix is decomposed once with a thin SVD,
+ * X = U * S * V^T; the ridge solution for any lambda is then
+ * teta = V * diag(s / (s^2 + lambda)) * U^T * y, so every extra lambda costs
+ * O(attributes^2) for the coefficients and O(attributes) for the training error.
+ * 
+ * The penalty is lambda * |teta|^2 on the attributes' tetas, added to the sum of squared
+ * errors; the intercept is not penalised. As in MainHW1.loadData, the class is the last attribute.
+ */
+public class RidgePath {
+	//stop rotating two columns once their cosine is below this
+	private static final double ORTHOGONALITY_TOLERANCE = 1e-15;
+	private static final int MAX_SWEEPS = 60;
+	private final int m_numFeatures;
+	private final int m_numRows;
+	private final double[] m_means;
+	private final double m_targetMean;
+	//singular values, right singular vectors (m_v[i][j] = V(i, j)) and z = U^T * (centred y)
+	private final double[] m_singularValues;
+	private final double[][] m_v;
+	private final double[] m_z;
+	//|centred y|^2 - |z|^2, the part of y no lambda can fit
+	private final double m_unexplained;
+
+	/**
+	 * Centres the training data and factorises it.
+	 * @param training
+	 */
+	public RidgePath(Instances training) {
+		DesignMatrix data = new DesignMatrix(training, training.classIndex(), training.numAttributes() - 1);
+		m_numFeatures = data.numFeatures;
+		m_numRows = data.numRows;
+		m_means = new double[m_numFeatures];
+		double targetMean = 0;
+		for (int r = 0, offset = 0; r < m_numRows; r++, offset += m_numFeatures) {
+			for (int j = 0; j < m_numFeatures; j++) {
+				m_means[j] += data.features[offset + j];
+			}
+			targetMean += data.targets[r];
+		}
+		for (int j = 0; j < m_numFeatures; j++) {
+			m_means[j] /= m_numRows;
+		}
+		m_targetMean = targetMean / m_numRows;
+		//column-major centred copy, the SVD rotates whole columns
+		double[][] columns = new double[m_numFeatures][m_numRows];
+		double[] y = new double[m_numRows];
+		for (int r = 0, offset = 0; r < m_numRows; r++, offset += m_numFeatures) {
+			for (int j = 0; j < m_numFeatures; j++) {
+				columns[j][r] = data.features[offset + j] - m_means[j];
+			}
+			y[r] = data.targets[r] - m_targetMean;
+		}
+		m_v = new double[m_numFeatures][m_numFeatures];
+		for (int j = 0; j < m_numFeatures; j++) {
+			m_v[j][j] = 1;
+		}
+		jacobiSvd(columns);
+		//the rotated columns are U * S: their norms are the singular values
+		m_singularValues = new double[m_numFeatures];
+		m_z = new double[m_numFeatures];
+		double yy = 0, zz = 0;
+		for (int r = 0; r < m_numRows; r++) {
+			yy += y[r] * y[r];
+		}
+		for (int j = 0; j < m_numFeatures; j++) {
+			double norm = 0, dot = 0;
+			for (int r = 0; r < m_numRows; r++) {
+				norm += columns[j][r] * columns[j][r];
+				dot += columns[j][r] * y[r];
+			}
+			m_singularValues[j] = Math.sqrt(norm);
+			m_z[j] = norm == 0 ? 0 : dot / m_singularValues[j];
+			zz += m_z[j] * m_z[j];
+		}
+		m_unexplained = Math.max(yy - zz, 0);
+	}
+
+	/**
+	 * One-sided (Hestenes) Jacobi SVD: rotates pairs of columns until all of them are
+	 * orthogonal, accumulating the rotations into m_v.
+	 */
+	private void jacobiSvd(double[][] columns) {
+		for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			boolean rotated = false;
+			for (int p = 0; p < m_numFeatures - 1; p++) {
+				for (int q = p + 1; q < m_numFeatures; q++) {
+					double[] a = columns[p], b = columns[q];
+					double alpha = 0, beta = 0, gamma = 0;
+					for (int r = 0; r < m_numRows; r++) {
+						alpha += a[r] * a[r];
+						beta += b[r] * b[r];
+						gamma += a[r] * b[r];
+					}
+					if (Math.abs(gamma) <= ORTHOGONALITY_TOLERANCE * Math.sqrt(alpha * beta)) continue;
+					rotated = true;
+					double zeta = (beta - alpha) / (2 * gamma);
+					double t = (zeta >= 0 ? 1 : -1) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+					double c = 1 / Math.sqrt(1 + t * t), s = c * t;
+					rotate(a, b, c, s, m_numRows);
+					for (int i = 0; i < m_numFeatures; i++) {
+						double vp = m_v[i][p], vq = m_v[i][q];
+						m_v[i][p] = c * vp - s * vq;
+						m_v[i][q] = s * vp + c * vq;
+					}
+				}
+			}
+			if (!rotated) break;
+		}
+	}
+
+	private static void rotate(double[] a, double[] b, double c, double s, int length) {
+		for (int r = 0; r < length; r++) {
+			double x = a[r], y = b[r];
+			a[r] = c * x - s * y;
+			b[r] = s * x + c * y;
+		}
+	}
+
+	/**
+	 * @param lambda
+	 * @return the ridge coefficients for the given lambda, intercept first
+	 */
+	public double[] coefficients(double lambda) {
+		//w = diag(s / (s^2 + lambda)) * z, directions with s = 0 contribute nothing
+		double[] w = new double[m_numFeatures];
+		for (int j = 0; j < m_numFeatures; j++) {
+			double s = m_singularValues[j];
+			w[j] = s == 0 ? 0 : s * m_z[j] / (s * s + lambda);
+		}
+		double[] teta = new double[m_numFeatures + 1];
+		teta[0] = m_targetMean;
+		for (int i = 0; i < m_numFeatures; i++) {
+			double sum = 0;
+			for (int j = 0; j < m_numFeatures; j++) {
+				sum += m_v[i][j] * w[j];
+			}
+			teta[i + 1] = sum;
+			teta[0] -= sum * m_means[i];
+		}
+		return teta;
+	}
+
+	/**
+	 * The training error for the given lambda, straight from the factorisation in O(attributes).
+	 * @param lambda
+	 * @return the same value calculateMSE gives on the training data
+	 */
+	public double trainingMSE(double lambda) {
+		double sum = m_unexplained;
+		for (int j = 0; j < m_numFeatures; j++) {
+			double s = m_singularValues[j];
+			//fraction of z[j] which is shrunk away
+			double shrink = s == 0 ? 1 : lambda / (s * s + lambda);
+			sum += shrink * shrink * m_z[j] * m_z[j];
+		}
+		return sum / ((double) m_numRows * 2.0);
+	}
+
+	/**
+	 * A LinearRegression holding the ridge coefficients for the given lambda, so it can be
+	 * evaluated with calculateMSE and used with regressionPrediction like any other model.
+	 * @param lambda
+	 * @return
+	 */
+	public LinearRegression model(double lambda) {
+		LinearRegression model = new LinearRegression();
+		model.initialize(m_numFeatures, m_numFeatures);
+		System.arraycopy(coefficients(lambda), 0, model.coefficients(), 0, m_numFeatures + 1);
+		model.publish();
+		return model;
+	}
+
+	/**
+	 * Fits every lambda of the grid and evaluates it on the training and testing data.
+	 * The testing rows are centred and projected on V once, after which every lambda
+	 * costs O(rows * attributes) to evaluate.
+	 * @param lambdas
+	 * @param testing
+	 * @return one result per lambda, in the order given
+	 */
+	public RidgeResult[] sweep(double[] lambdas, Instances testing) {
+		DesignMatrix test = new DesignMatrix(testing, testing.classIndex(), m_numFeatures);
+		//projected[r * m_numFeatures + j] = ((x_r - means) * V)_j
+		double[] projected = new double[test.numRows * m_numFeatures];
+		double[] centred = new double[m_numFeatures];
+		for (int r = 0, offset = 0; r < test.numRows; r++, offset += m_numFeatures) {
+			for (int i = 0; i < m_numFeatures; i++) {
+				centred[i] = test.features[offset + i] - m_means[i];
+			}
+			for (int j = 0; j < m_numFeatures; j++) {
+				double sum = 0;
+				for (int i = 0; i < m_numFeatures; i++) {
+					sum += centred[i] * m_v[i][j];
+				}
+				projected[offset + j] = sum;
+			}
+		}
+		RidgeResult[] results = new RidgeResult[lambdas.length];
+		double[] w = new double[m_numFeatures];
+		for (int l = 0; l < lambdas.length; l++) {
+			double lambda = lambdas[l];
+			for (int j = 0; j < m_numFeatures; j++) {
+				double s = m_singularValues[j];
+				w[j] = s == 0 ? 0 : s * m_z[j] / (s * s + lambda);
+			}
+			double cost = 0;
+			for (int r = 0, offset = 0; r < test.numRows; r++, offset += m_numFeatures) {
+				double error = m_targetMean - test.targets[r];
+				for (int j = 0; j < m_numFeatures; j++) {
+					error += projected[offset + j] * w[j];
+				}
+				cost += error * error;
+			}
+			double testingMSE = cost / ((double) test.numRows * 2.0);
+			results[l] = new RidgeResult(lambda, coefficients(lambda), trainingMSE(lambda), testingMSE);
+		}
+		return results;
+	}
+}
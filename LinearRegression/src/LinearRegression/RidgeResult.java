@@ -0,0 +1,20 @@
+package LinearRegression;
+
+/**
+ * The ridge fit for one value of lambda.
+ */
+public class RidgeResult {
+	public final double lambda;
+	//intercept first, as in LinearRegression
+	public final double[] coefficients;
+	//errors as LinearRegression.calculateMSE computes them
+	public final double trainingMSE;
+	public final double testingMSE;
+
+	RidgeResult(double lambda, double[] coefficients, double trainingMSE, double testingMSE) {
+		this.lambda = lambda;
+		this.coefficients = coefficients;
+		this.trainingMSE = trainingMSE;
+		this.testingMSE = testingMSE;
+	}
+}
@@ -0,0 +1,180 @@
+package LinearRegression;
+
+import java.io.File;
+import java.util.Random;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Trains a LinearRegression with mini-batch stochastic gradient descent directly
+ * from an ARFF file, reading it incrementally instead of loading it into Instances.
+ * Only the shuffle buffer and one batch are kept in memory, so the memory use
+ * doesn't depend on the size of the file.
+ * As in MainHW1.loadData, the class is the last attribute.
+ */
+public class StreamingTrainer {
+	private int m_epochs = 1;
+	private int m_batchSize = 32;
+	private int m_shuffleBufferSize = 1024;
+	private double m_alpha = 1e-4;
+	private long m_seed = 1;
+
+	/**
+	 * Number of passes over the file.
+	 * @param epochs
+	 */
+	public void setEpochs(int epochs) {
+		if (epochs < 1) throw new IllegalArgumentException("epochs must be positive: " + epochs);
+		m_epochs = epochs;
+	}
+
+	/**
+	 * Number of rows averaged into every coefficient update.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		m_batchSize = batchSize;
+	}
+
+	/**
+	 * Number of rows held back to shuffle the stream, 0 keeps the file order.
+	 * @param shuffleBufferSize
+	 */
+	public void setShuffleBufferSize(int shuffleBufferSize) {
+		if (shuffleBufferSize < 0) throw new IllegalArgumentException("shuffle buffer size can't be negative: " + shuffleBufferSize);
+		m_shuffleBufferSize = shuffleBufferSize;
+	}
+
+	/**
+	 * The learning rate. There is no alpha search on a stream, so it has to be
+	 * given up front (for example the one findAlpha picks on a sample of the data).
+	 * @param alpha
+	 */
+	public void setAlpha(double alpha) {
+		m_alpha = alpha;
+	}
+
+	public void setSeed(long seed) {
+		m_seed = seed;
+	}
+
+	/**
+	 * Trains a new model on the given ARFF file.
+	 * @param arffFile
+	 * @return the trained model
+	 * @throws Exception
+	 */
+	public LinearRegression train(File arffFile) throws Exception {
+		LinearRegression model = new LinearRegression();
+		Random random = new Random(m_seed);
+		Batch batch = null;
+		double[][] shuffleBuffer = null;
+		for (int epoch = 0; epoch < m_epochs; epoch++) {
+			ArffLoader loader = new ArffLoader();
+			loader.setFile(arffFile);
+			Instances structure = loader.getStructure();
+			structure.setClassIndex(structure.numAttributes() - 1);
+			int numFeatures = structure.numAttributes() - 1;
+			if (batch == null) {
+				model.initialize(structure.classIndex(), numFeatures);
+				model.setAlpha(m_alpha);
+				batch = new Batch(m_batchSize, numFeatures, model.coefficients());
+				shuffleBuffer = new double[m_shuffleBufferSize][];
+			}
+			double[] scratch = new double[numFeatures + 1];
+			int buffered = 0;
+			Instance instance;
+			while ((instance = loader.getNextInstance(structure)) != null) {
+				if (m_shuffleBufferSize == 0) {
+					fill(scratch, instance, numFeatures);
+					batch.add(scratch);
+				} else if (buffered < m_shuffleBufferSize) {
+					if (shuffleBuffer[buffered] == null) {
+						shuffleBuffer[buffered] = new double[numFeatures + 1];
+					}
+					fill(shuffleBuffer[buffered++], instance, numFeatures);
+				} else {
+					//the buffer is full, emit a random buffered row and reuse its slot
+					double[] row = shuffleBuffer[random.nextInt(m_shuffleBufferSize)];
+					batch.add(row);
+					fill(row, instance, numFeatures);
+				}
+			}
+			//draining what is left in the buffer in a random order
+			for (int i = buffered - 1; i >= 0; i--) {
+				int slot = random.nextInt(i + 1);
+				double[] row = shuffleBuffer[slot];
+				shuffleBuffer[slot] = shuffleBuffer[i];
+				shuffleBuffer[i] = row;
+				batch.add(row);
+			}
+			batch.flush();
+			//scoring threads see the model as of the last completed epoch
+			model.publish();
+		}
+		return model;
+	}
+
+	private static void fill(double[] row, Instance instance, int numFeatures) {
+		for (int j = 0; j < numFeatures; j++) {
+			row[j] = instance.value(j);
+		}
+		//the class is the last attribute
+		row[numFeatures] = instance.value(numFeatures);
+	}
+
+	/**
+	 * A fixed size block of rows (copied in) which updates the coefficients once it is full.
+	 */
+	private class Batch {
+		final int numFeatures;
+		final double[] features;
+		final double[] targets;
+		final double[] coefficients;
+		final double[] gradient;
+		int size;
+
+		Batch(int capacity, int numFeatures, double[] coefficients) {
+			this.numFeatures = numFeatures;
+			this.features = new double[capacity * numFeatures];
+			this.targets = new double[capacity];
+			this.coefficients = coefficients;
+			this.gradient = new double[numFeatures + 1];
+		}
+
+		void add(double[] row) {
+			System.arraycopy(row, 0, features, size * numFeatures, numFeatures);
+			targets[size++] = row[numFeatures];
+			if (size == targets.length) {
+				flush();
+			}
+		}
+
+		/**
+		 * One gradient step on the rows collected so far.
+		 */
+		void flush() {
+			if (size == 0) return;
+			for (int i = 0; i <= numFeatures; i++) {
+				gradient[i] = 0;
+			}
+			for (int r = 0, offset = 0; r < size; r++, offset += numFeatures) {
+				double residual = coefficients[0] - targets[r];
+				for (int j = 0; j < numFeatures; j++) {
+					residual += coefficients[j + 1] * features[offset + j];
+				}
+				gradient[0] += residual;
+				for (int j = 0; j < numFeatures; j++) {
+					gradient[j + 1] += residual * features[offset + j];
+				}
+			}
+			for (int i = 0; i <= numFeatures; i++) {
+				coefficients[i] -= m_alpha * gradient[i] / (double) size;
+			}
+			size = 0;
+		}
+	}
+}
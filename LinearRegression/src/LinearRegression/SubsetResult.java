@@ -0,0 +1,19 @@
+package LinearRegression;
+
+/**
+ * A least squares fit on a subset of the attributes.
+ */
+public class SubsetResult {
+	//0-based indices of the attributes used, in increasing order
+	public final int[] attributes;
+	//intercept first, then one teta per attribute in 'attributes'
+	public final double[] coefficients;
+	//the training error, as LinearRegression.calculateMSE computes it
+	public final double mse;
+
+	SubsetResult(int[] attributes, double[] coefficients, double mse) {
+		this.attributes = attributes;
+		this.coefficients = coefficients;
+		this.mse = mse;
+	}
+}
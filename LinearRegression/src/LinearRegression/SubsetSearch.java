@@ -0,0 +1,83 @@
+package LinearRegression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import weka.core.Instances;
+
+/**
+ * Fits every subset of a given size of the attributes from one set of sufficient
+ * statistics: X^T * X and X^T * y are computed once over the training data and each
+ * subset is solved from its sub-matrix, without copying or filtering the data.
+ * The subsets are independent, so they are solved in parallel.
+ * As in MainHW1.loadData, the class is the last attribute.
+ */
+public class SubsetSearch {
+	private final GramMatrix m_gram;
+
+	/**
+	 * @param training
+	 */
+	public SubsetSearch(Instances training) {
+		m_gram = GramMatrix.of(training, training.classIndex(), training.numAttributes() - 1);
+	}
+
+	public int numAttributes() {
+		return m_gram.numFeatures;
+	}
+
+	/**
+	 * Fits all the subsets of the given size.
+	 * @param size
+	 * @return one result per subset, in lexicographic order of the attribute indices
+	 */
+	public SubsetResult[] evaluateAll(int size) {
+		List<int[]> subsets = new ArrayList<>();
+		combinations(new int[size], 0, 0, subsets);
+		SubsetResult[] results = new SubsetResult[subsets.size()];
+		IntStream.range(0, results.length).parallel().forEach(i -> results[i] = fit(subsets.get(i)));
+		return results;
+	}
+
+	/**
+	 * @param size
+	 * @return the subset of the given size with the smallest training error
+	 */
+	public SubsetResult best(int size) {
+		SubsetResult best = null;
+		for (SubsetResult result : evaluateAll(size)) {
+			if (best == null || result.mse < best.mse) {
+				best = result;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Least squares fit of a single subset from the cached statistics.
+	 * An ill-conditioned subset (e.g. duplicated attributes) gets an infinite error.
+	 * @param attributes 0-based attribute indices in increasing order
+	 * @return
+	 */
+	public SubsetResult fit(int[] attributes) {
+		int[] columns = new int[attributes.length + 1];
+		for (int i = 0; i < attributes.length; i++) {
+			columns[i + 1] = attributes[i] + 1;
+		}
+		double[] coefficients = m_gram.solve(columns);
+		double mse = coefficients == null ? Double.POSITIVE_INFINITY : m_gram.cost(columns, coefficients);
+		return new SubsetResult(attributes, coefficients, mse);
+	}
+
+	private void combinations(int[] current, int position, int from, List<int[]> subsets) {
+		if (position == current.length) {
+			subsets.add(current.clone());
+			return;
+		}
+		for (int i = from; i <= m_gram.numFeatures - (current.length - position); i++) {
+			current[position] = i;
+			combinations(current, position + 1, i + 1, subsets);
+		}
+	}
+}